@@ -66,6 +66,18 @@ public class PCoordinate implements IPixelCoordinate {
         this.proj = other.proj;
     }
     
+
+    /**
+     * Sets this coordinate to be identical to other (including its
+     * zoom level and projection).
+     */
+    public void set(PCoordinate other) {
+        this.px = other.px;
+        this.py = other.py;
+        this.zoom = other.zoom;
+        this.proj = other.proj;
+    }
+    
         
     /**
      * Returns the maximum number of pixels that are on a map
@@ -192,6 +192,30 @@ public class TCoordinate implements ITileCoordinate {
     }
     
     
+    /**
+     * Creates the coordinate of the tile that is the specified number of zoom levels
+     * above this one and contains this tile, in the same coordinate space as this object.
+     */
+    public TCoordinate getParent(int levels) {
+        int parentZoom = this.zoom - levels;
+        int rowXYZ = getRowAsXYZ() >> levels;
+        return new TCoordinate(col >> levels, this.xyz ? rowXYZ : flipY(rowXYZ, parentZoom), parentZoom, this.xyz, this.proj);
+    }
+    
+    
+    /**
+     * Creates the coordinate of one of the four tiles one zoom level below this one
+     * that this tile contains, in the same coordinate space as this object.
+     * @param subCol 0 for the left half of this tile, 1 for the right half
+     * @param subRow 0 for the top half of this tile, 1 for the bottom half
+     */
+    public TCoordinate getChild(int subCol, int subRow) {
+        int childZoom = this.zoom + 1;
+        int rowXYZ = (getRowAsXYZ() << 1) + subRow;
+        return new TCoordinate((col << 1) + subCol, this.xyz ? rowXYZ : flipY(rowXYZ, childZoom), childZoom, this.xyz, this.proj);
+    }
+    
+    
     /**
      * Returns the pixel coordinate of the upper left hand corner of this tile
      * (i.e. the pixel coordinate of pixel at (0,0) on the tile image
@@ -1,32 +1,398 @@
 package org.map4j.loaders;
 
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.map4j.coordinates.PCoordinate;
+import org.map4j.coordinates.TCoordinate;
 
 /**
  * The abstract base class of all tile loaders, it supports multi-threaded loading of 
- * individual tiles via a ThreadPoolExecutor.
+ * individual tiles via a ThreadPoolExecutor that is owned by the loader.
+ * <p>Queued jobs are not run in the order they were submitted. Instead, the job
+ * whose tile is closest to the loader's "load focus" (usually the center of the
+ * displayed map) is run first.
+ * <p>Loading is split into two stages. A loader's own threads do the (usually blocking)
+ * I/O of reading a tile's encoded image, then hand the tile off to a decode stage
+ * shared by all loaders (see handOffToDecode()) that decodes its image and finishes
+ * loading it. The CPU bound decoding thus runs on the decode stage's threads, which
+ * are sized to the number of processors. Tiles that are only being prefetched (see
+ * Tile.setDecodeOnLoad()) are finished without being decoded.
+ * The hand-off is bounded: when the decode stage's queue is full, the loader thread
+ * finishes the tile itself, slowing I/O down to what decoding can keep up with.
  *
  * @author Joel Kozikowski
  */
 public abstract class AbstractTileLoader implements ITileLoader {
 
-    protected static final ThreadPoolExecutor jobDispatcher = (ThreadPoolExecutor) Executors.newFixedThreadPool(8);
+    /**
+     * Orders queued jobs by their priority, with jobs of equal priority
+     * run in the order they were submitted.
+     */
+    private static final Comparator<Runnable> jobOrder = new Comparator<Runnable>() {
+        @Override
+        public int compare(Runnable r1, Runnable r2) {
+            TileLoaderJob job1 = (TileLoaderJob) r1;
+            TileLoaderJob job2 = (TileLoaderJob) r2;
+            int result = Long.compare(job1.priority, job2.priority);
+            if (result == 0) {
+                result = Long.compare(job1.sequence, job2.sequence);
+            }
+            return result;
+        }
+    };
+    
+    private static final AtomicLong jobSequence = new AtomicLong();
+    
+    /**
+     * The priority given to jobs whose tile is not on the zoom level being focused on.
+     */
+    protected static final long PRIORITY_UNFOCUSED = Long.MAX_VALUE / 2;
+    
+    /**
+     * Added to the priority of jobs whose tile already has a placeholder image to
+     * display, so tiles that would otherwise show a "loading" image are loaded first.
+     */
+    protected static final long PRIORITY_HAS_PLACEHOLDER = Long.MAX_VALUE / 4;
+    
+    /**
+     * Added to the priority of jobs whose tile is only being prefetched (see
+     * Tile.setDecodeOnLoad()), so they run after the jobs of every displayed tile.
+     */
+    protected static final long PRIORITY_PREFETCH = Long.MAX_VALUE / 4 * 3;
+    
+    private static int defaultConcurrentJobs = 8;
+    
+    private static final int DECODE_THREADS = Runtime.getRuntime().availableProcessors();
+    
+    private static final AtomicLong decodeCallerRuns = new AtomicLong();
+    private static final AtomicInteger peakQueuedDecodes = new AtomicInteger();
+    
+    /**
+     * The executor of the decode stage, shared by all loaders
+     */
+    private static final ThreadPoolExecutor decodeDispatcher = 
+            new ThreadPoolExecutor(DECODE_THREADS, DECODE_THREADS, 30L, TimeUnit.SECONDS,
+                                   new ArrayBlockingQueue<Runnable>(Math.max(64, DECODE_THREADS * 16)),
+                                   new ThreadFactory() {
+                                       @Override
+                                       public Thread newThread(Runnable r) {
+                                           Thread t = new Thread(r, "Map4J tile decoder");
+                                           t.setDaemon(true);
+                                           return t;
+                                       }
+                                   },
+                                   new ThreadPoolExecutor.CallerRunsPolicy() {
+                                       @Override
+                                       public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+                                           if (r instanceof AsyncDecode) {
+                                               // The caller may be painting, so never decode on its thread...
+                                               ForkJoinPool.commonPool().execute(r);
+                                               return;
+                                           }
+                                           decodeCallerRuns.incrementAndGet();
+                                           super.rejectedExecution(r, e);
+                                       }
+                                   });
+    
+    static {
+        decodeDispatcher.allowCoreThreadTimeOut(true);
+    }
+    
+    /**
+     * The tiles waiting for (or in the middle of) a decodeAsync()
+     */
+    private static final Set<Tile> asyncDecodes = ConcurrentHashMap.newKeySet();
+    
+    /**
+     * A decode requested by decodeAsync(), which is never run on the calling thread
+     */
+    private static final class AsyncDecode implements Runnable {
+        private final Tile tile;
+        
+        AsyncDecode(Tile tile) {
+            this.tile = tile;
+        }
+        
+        @Override
+        public void run() {
+            try {
+                // Listeners learn of the decoded image through TOPIC_DECODED...
+                tile.decode();
+            }
+            finally {
+                asyncDecodes.remove(tile);
+            }
+        }
+    }
+    
+    /**
+     * The executor that runs this loader's jobs. Each loader has its own, so 
+     * the jobs of one loader can be canceled without affecting any other loader.
+     */
+    protected final ThreadPoolExecutor jobDispatcher;
+    
+    private volatile PCoordinate loadFocus;
+    
+    private final AtomicInteger pendingDecodes = new AtomicInteger();
+    private final AtomicInteger peakQueuedJobs = new AtomicInteger();
+    
+    
+    /**
+     * The base class of jobs created by AbstractTileLoader subclasses.  It takes care
+     * of submitting the job to the job dispatcher with the proper priority.
+     */
+    protected abstract class TileLoaderJob implements ITileLoaderJob {
+        
+        protected final Tile tile;
+        protected boolean force;
+        
+        private long priority;
+        private long sequence;
+        
+        protected TileLoaderJob(Tile tile) {
+            this.tile = tile;
+        }
+        
+        
+        @Override
+        public Tile getTile() {
+            return tile;
+        }
+        
+        
+        @Override
+        public void startTileLoad() {
+            startTileLoad(false);
+        }
+        
+        
+        /**
+         * Marks the tile as loading and submits this job to the loader's job dispatcher.
+         * If the tile has already been loaded without error (and force is FALSE), or
+         * is already queued or being loaded by another job, nothing is done.
+         */
+        @Override
+        public void startTileLoad(boolean force) {
+            if (claimTile(tile, force)) {
+                this.force = force;
+                submit(this);
+            }
+        }
+            
+        
+        /**
+         * Returns the priority this job should run with. The default is the
+         * priority of the job's tile.
+         */
+        protected long getJobPriority() {
+            return getPriority(tile);
+        }
+        
+        
+        /**
+         * Called when this job has been removed from the queue before it started. The
+         * default returns the job's tile to the "unloaded" state.
+         */
+        protected void loadingCanceled() {
+            tile.loadingCanceled();
+        }
+    }
 
 
     public AbstractTileLoader() {
+        this(defaultConcurrentJobs);
+    }
+    
+    
+    /**
+     * @param concurrentJobs The maximum number of jobs this loader will run at the same time
+     */
+    public AbstractTileLoader(int concurrentJobs) {
+        jobDispatcher = new ThreadPoolExecutor(concurrentJobs, concurrentJobs, 30L, TimeUnit.SECONDS,
+                                               new PriorityBlockingQueue<Runnable>(64, jobOrder),
+                                               new ThreadFactory() {
+                                                   @Override
+                                                   public Thread newThread(Runnable r) {
+                                                       Thread t = new Thread(r, "Map4J tile loader " + AbstractTileLoader.this.getClass().getSimpleName());
+                                                       t.setDaemon(true);
+                                                       return t;
+                                                   }
+                                               });
+        
+        // Idle loaders should not tie up any threads...
+        jobDispatcher.allowCoreThreadTimeOut(true);
     }
   
     
+    /**
+     * Marks the specified tile as loading, returning TRUE if the caller is now responsible
+     * for loading it. If the tile has already been loaded without error (and force is FALSE), 
+     * or is already queued or being loaded by another job, FALSE is returned.
+     */
+    protected boolean claimTile(Tile tile, boolean force) {
+        synchronized (tile) {
+            if ((!force && tile.isLoaded() && !tile.hasError()) || tile.isLoading()) {
+                // Tiles loaded without error as well as tiles currently being
+                // loaded do not need a new job.
+                return false;
+            }
+            tile.startLoading();
+            return true;
+        }
+    }
+    
+    
+    /**
+     * Submits the specified job to this loader's job dispatcher with the proper priority. The
+     * job's tile(s) must already have been claimed via claimTile().
+     */
+    protected void submit(TileLoaderJob job) {
+        job.priority = job.getJobPriority();
+        job.sequence = jobSequence.incrementAndGet();
+        jobDispatcher.execute(job);
+        int queued = jobDispatcher.getQueue().size();
+        peakQueuedJobs.accumulateAndGet(queued, Math::max);
+    }
+    
+    
+    /**
+     * Hands a tile whose encoded image has been read (see Tile.setImageDeferred()) off to
+     * the decode stage, which decodes the image (unless the tile is only being prefetched,
+     * see Tile.setDecodeOnLoad()) and finishes loading the tile. If the decode stage is
+     * backed up, this is done on the calling thread instead.
+     */
+    protected void handOffToDecode(Tile tile) {
+        pendingDecodes.incrementAndGet();
+        decodeDispatcher.execute(() -> {
+            try {
+                if (tile.isDecodeOnLoad()) {
+                    tile.decode();
+                }
+                tile.finishLoading(true);
+            }
+            finally {
+                pendingDecodes.decrementAndGet();
+            }
+        });
+        int queued = decodeDispatcher.getQueue().size();
+        peakQueuedDecodes.accumulateAndGet(queued, Math::max);
+    }
+    
+    
+    /**
+     * Decodes the image of a tile that is waiting to be decoded (see Tile.setImageDeferred())
+     * on the decode stage. Listeners that want to draw the decoded image should subscribe
+     * to TOPIC_DECODED. This is for tiles found undecoded in a cache (e.g. prefetched or restored
+     * from a snapshot), which would otherwise be decoded by whatever thread paints them first.
+     * Tiles already waiting for a decode are ignored.
+     */
+    public static void decodeAsync(Tile tile) {
+        if (tile.isDecodePending() && asyncDecodes.add(tile)) {
+            decodeDispatcher.execute(new AsyncDecode(tile));
+        }
+    }
+    
+    
     @Override
     public boolean hasOutstandingJobs() {
-        return jobDispatcher.getTaskCount() > jobDispatcher.getCompletedTaskCount();
+        return jobDispatcher.getTaskCount() > jobDispatcher.getCompletedTaskCount() ||
+               pendingDecodes.get() > 0;
+    }
+    
+    
+    /**
+     * Returns the number of this loader's jobs waiting to run in its I/O stage.
+     */
+    public int getQueuedJobs() {
+        return jobDispatcher.getQueue().size();
+    }
+    
+    
+    /**
+     * Returns the largest number of this loader's jobs that have been waiting to run
+     * at the same time.
+     */
+    public int getPeakQueuedJobs() {
+        return peakQueuedJobs.get();
+    }
+    
+    
+    /**
+     * Returns the number of this loader's jobs currently running.
+     */
+    public int getActiveJobs() {
+        return jobDispatcher.getActiveCount();
+    }
+    
+    
+    /**
+     * Returns the number of tiles (of all loaders) waiting in the decode stage.
+     */
+    public static int getQueuedDecodes() {
+        return decodeDispatcher.getQueue().size();
+    }
+    
+    
+    /**
+     * Returns the largest number of tiles (of all loaders) that have been waiting in the
+     * decode stage at the same time.
+     */
+    public static int getPeakQueuedDecodes() {
+        return peakQueuedDecodes.get();
+    }
+    
+    
+    /**
+     * Returns the number of tiles currently being decoded or finished by the decode stage.
+     */
+    public static int getActiveDecodes() {
+        return decodeDispatcher.getActiveCount();
+    }
+    
+    
+    /**
+     * Returns the number of tiles that were finished by a loader thread because the
+     * decode stage's queue was full. A steadily growing count means I/O is outrunning
+     * decoding.
+     */
+    public static long getDecodeCallerRuns() {
+        return decodeCallerRuns.get();
+    }
+    
+    
+    /**
+     * Returns the number of threads of the decode stage.
+     */
+    public static int getDecodeThreads() {
+        return DECODE_THREADS;
     }
 
     
+    /**
+     * Removes all of this loader's jobs that have not yet started from the queue, returning
+     * their tiles to the "unloaded" state. Jobs of other loaders are not affected.
+     */
     @Override
     public void cancelOutstandingJobs() {
-        jobDispatcher.getQueue().clear();
+        List<Runnable> canceled = new ArrayList<>();
+        synchronized (jobDispatcher) {
+            jobDispatcher.getQueue().drainTo(canceled);
+        }
+        for (Runnable r : canceled) {
+            ((TileLoaderJob) r).loadingCanceled();
+        }
     }
 
     
@@ -40,10 +406,104 @@ public abstract class AbstractTileLoader implements ITileLoader {
 
     
     /**
-     * Sets the maximum number of concurrent connections the tile loader will do
+     * Sets the maximum number of concurrent connections tile loaders will do. This 
+     * applies to loaders created after this call. Use setConcurrentJobs() to change
+     * an existing loader.
      * @param num number of concurrent connections
      */
     public static void setConcurrentConnections(int num) {
-        jobDispatcher.setMaximumPoolSize(num);
+        defaultConcurrentJobs = num;
+    }
+    
+    
+    /**
+     * Sets the maximum number of jobs this loader will run at the same time.
+     */
+    public void setConcurrentJobs(int num) {
+        if (num > jobDispatcher.getMaximumPoolSize()) {
+            jobDispatcher.setMaximumPoolSize(num);
+            jobDispatcher.setCorePoolSize(num);
+        }
+        else {
+            jobDispatcher.setCorePoolSize(num);
+            jobDispatcher.setMaximumPoolSize(num);
+        }
+    }
+    
+    
+    @Override
+    public void setLoadFocus(PCoordinate focus) {
+        PCoordinate oldFocus = this.loadFocus;
+        this.loadFocus = new PCoordinate(focus);
+        
+        // Jobs already in the queue only need to be re-ordered when the focus
+        // has moved to another tile...
+        TCoordinate oldFocusTile = (oldFocus != null ? oldFocus.asT() : null);
+        if (!focus.asT().equals(oldFocusTile)) {
+            reprioritizeJobs();
+        }
+    }
+    
+    
+    /**
+     * Returns the current load focus, or null if none has been set.
+     */
+    public PCoordinate getLoadFocus() {
+        return this.loadFocus;
+    }
+    
+    
+    /**
+     * Returns the priority a job loading the specified tile should have, where lower numbers
+     * run first. The default is the squared distance (in pixels) between the center of the
+     * tile and the load focus, with tiles that already have a placeholder image after
+     * those that do not, and tiles that are only being prefetched after all displayed tiles.
+     */
+    protected long getPriority(Tile tile) {
+        long penalty;
+        if (!tile.isDecodeOnLoad()) {
+            penalty = PRIORITY_PREFETCH;
+        }
+        else if (tile.hasPlaceholder()) {
+            penalty = PRIORITY_HAS_PLACEHOLDER;
+        }
+        else {
+            penalty = 0;
+        }
+        PCoordinate focus = this.loadFocus;
+        if (focus == null) {
+            return penalty;
+        }
+        if (focus.getZoom() != tile.coord.getZoom()) {
+            // Prefetching for another zoom level is the least important work of all
+            return penalty == PRIORITY_PREFETCH ? Long.MAX_VALUE : PRIORITY_UNFOCUSED;
+        }
+        PCoordinate tileCenter = tile.coord.centerAsP();
+        long dx = tileCenter.getPixelX() - focus.getPixelX();
+        long dy = tileCenter.getPixelY() - focus.getPixelY();
+        return penalty + dx * dx + dy * dy;
+    }
+    
+    
+    /**
+     * Recalculates the priority of all jobs that are waiting in the job queue. Since a
+     * priority queue can not re-order entries in place, the queue is drained and refilled.
+     */
+    @Override
+    public void reprioritizeJobs() {
+        synchronized (jobDispatcher) {
+            List<Runnable> queued = new ArrayList<>();
+            jobDispatcher.getQueue().drainTo(queued);
+            try {
+                for (Runnable r : queued) {
+                    TileLoaderJob job = (TileLoaderJob) r;
+                    job.priority = job.getJobPriority();
+                }
+            }
+            finally {
+                // Never lose the queued jobs, even if a priority can not be calculated
+                jobDispatcher.getQueue().addAll(queued);
+            }
+        }
     }
 }
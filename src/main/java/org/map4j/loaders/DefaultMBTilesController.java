@@ -1,18 +1,22 @@
 package org.map4j.loaders;
 
+import java.io.File;
+
 import org.map4j.loaders.cache.MemoryTileCache;
 import org.map4j.utils.mbtiles.MBTilesFile;
+import org.map4j.utils.mbtiles.MBTilesReadOptions;
 
 
 /**
  * The default loader controller that will load map tiles from a local
- * MBTiles file, caching them in a simple in-memory cache.
+ * MBTiles file, caching them in a simple in-memory cache. The file is
+ * opened read-only so tiles can be read by several loader threads at once.
  * @author Joel Kozikowski
  */
 public class DefaultMBTilesController extends TileLoaderController {
 
     public DefaultMBTilesController(String mbTilesFileName) {
-        super(new MBTilesLoader(new MBTilesFile(mbTilesFileName)), new MemoryTileCache());
+        super(new MBTilesLoader(new MBTilesFile(new File(mbTilesFileName), new MBTilesReadOptions())), new MemoryTileCache());
     }
 
 }
@@ -1,15 +1,22 @@
 package org.map4j.loaders;
 
 import org.map4j.loaders.cache.MemoryTileCache;
+import org.map4j.loaders.cache.NegativeTileCache;
 
 
 /**
  * The default loader controller that will load map tiles from an online
- * map service, such as Open Street Maps, caching them in a simple in-memory cache.
+ * map service, such as Open Street Maps, caching them in a simple in-memory cache
+ * and (optionally) a persistent disk cache.
  * 
  * @author Joel Kozikowski
  */
 public class DefaultOnlineTileController extends TileLoaderController {
+    
+    /**
+     * The number of milliseconds a tile the service did not have is remembered as missing
+     */
+    public static final long MISSING_TILE_TIME_TO_LIVE = 60L * 60L * 1000L;
 
     
     /**
@@ -24,7 +31,31 @@ public class DefaultOnlineTileController extends TileLoaderController {
      * @param useXYZ TRUE if the tile service uses XYZ tile coordinates, false if using TMS
      */
     public DefaultOnlineTileController(String sourceId, String baseUrl, String imageExtension, boolean useXYZ) {
-        super(new MapServiceLoader(new MapService(sourceId, baseUrl, imageExtension, useXYZ)), new MemoryTileCache());
+        this(sourceId, baseUrl, imageExtension, useXYZ, null);
+    }
+    
+    
+    /**
+     * A tile loader controller that will load its tiles from an online source, keeping
+     * a copy of each tile downloaded in a persistent disk cache.
+     * @param diskCacheFileName The name of an MBTiles file to use as a disk cache of the
+     *   tiles downloaded (it will be created if it does not exist). Specify NULL if no
+     *   disk cache should be used.
+     * @see #DefaultOnlineTileController(String, String, String, boolean)
+     * @see DiskCachedTileLoader
+     */
+    public DefaultOnlineTileController(String sourceId, String baseUrl, String imageExtension, boolean useXYZ, String diskCacheFileName) {
+        super(createTileLoader(new MapServiceLoader(new MapService(sourceId, baseUrl, imageExtension, useXYZ)), diskCacheFileName), new MemoryTileCache());
+        // An online service may gain tiles, so do not remember missing tiles for ever
+        setMissingTiles(new NegativeTileCache(DEFAULT_MISSING_TILES, MISSING_TILE_TIME_TO_LIVE));
+    }
+    
+    
+    private static ITileLoader createTileLoader(ITileLoader onlineLoader, String diskCacheFileName) {
+        if (diskCacheFileName != null) {
+            return new DiskCachedTileLoader(onlineLoader, diskCacheFileName);
+        }
+        return onlineLoader;
     }
 
 }
@@ -0,0 +1,321 @@
+package org.map4j.loaders;
+
+import java.io.File;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.map4j.coordinates.PCoordinate;
+import org.map4j.coordinates.TCoordinate;
+import org.map4j.utils.mbtiles.MBTile;
+import org.map4j.utils.mbtiles.MBTilesFile;
+
+/**
+ * A tile loader that adds a persistent disk cache to another tile loader (usually
+ * a MapServiceLoader). Tiles are first looked for in an MBTiles file on disk. If a tile
+ * is not there (or has expired), it is loaded by the other loader and then written
+ * to the file, so later runs of the application do not have to wait on the network.
+ * If the other loader fails to load a tile that has expired, the expired tile is
+ * loaded from the file after all.
+ * <p>The expiration time of each tile is taken from the tile's "expires" metadata
+ * (see MapServiceLoader). Tiles without one expire after getDefaultMaxAge() milliseconds.
+ *
+ * @author Joel Kozikowski
+ */
+public class DiskCachedTileLoader extends AbstractTileLoader {
+    
+    /**
+     * A TileJob that loads a tile from the disk cache if possible, otherwise
+     * runs the wrapped loader's job and writes the result to the disk cache.
+     */
+    private final class DiskCachedJob extends TileLoaderJob {
+        
+        /**
+         * The image of the tile found in the disk cache, if it had expired
+         */
+        private byte[] expiredImage;
+        private long expiredAt;
+        
+        private DiskCachedJob(Tile tile) {
+            super(tile);
+        }
+        
+        @Override
+        public void run() {
+            if (!force && loadFromDisk()) {
+                return;
+            }
+            
+            // Run the wrapped loader's job right here, rather than queuing it on that
+            // loader's dispatcher, so the result can be written through to disk...
+            if (expiredImage == null) {
+                runWrappedJob(tile);
+                saveToDisk();
+            }
+            else if (loadOrServeExpired()) {
+                saveToDisk();
+            }
+        }
+        
+        
+        private void runWrappedJob(Tile target) {
+            ITileLoaderJob job = tileLoader.createTileLoaderJob(target);
+            if (job instanceof TileLoaderJob) {
+                ((TileLoaderJob) job).force = force;
+            }
+            job.run();
+        }
+        
+        
+        /**
+         * Loads the tile with the wrapped loader into a stand-in tile, so the expired image
+         * from the disk cache can still be served if the load fails. Returns TRUE if the
+         * wrapped loader loaded a new image.
+         */
+        private boolean loadOrServeExpired() {
+            Tile loaded = new Tile(tile.sourceId, tile.coord);
+            loaded.setDecodeOnLoad(false);
+            loaded.startLoading();
+            CompletableFuture<Tile> future = loaded.getLoadFuture();
+            runWrappedJob(loaded);
+            // The wrapped loader finishes the stand-in on the decode stage...
+            future.join();
+            
+            if (loaded.hasError() && !loaded.isMissing()) {
+                // Better an out of date image than an error...
+                tile.setImageDeferred(expiredImage);
+                tile.putMetaValue("expires", Long.toString(expiredAt));
+                expiredHits.incrementAndGet();
+                handOffToDecode(tile);
+                return false;
+            }
+            
+            tile.getMetadata().putAll(loaded.getMetadata());
+            byte[] bytes = loaded.getEncodedImage();
+            if (loaded.hasError()) {
+                tile.setMissing(loaded.getErrorMessage());
+                tile.finishLoading(false);
+            }
+            else if (bytes != null) {
+                tile.setImageDeferred(bytes);
+                handOffToDecode(tile);
+            }
+            else {
+                tile.setImage(loaded.getImage());
+                tile.finishLoading(true);
+            }
+            return true;
+        }
+        
+        
+        private boolean loadFromDisk() {
+            int z = tile.coord.getZoom();
+            int x = tile.coord.getCol();
+            int y = tile.coord.getRowAsTMS();
+            try {
+                MBTile mbTile = cacheFile.getTile(z, x, y);
+                if (mbTile != null) {
+                    long expires = cacheFile.getTileExpiration(z, x, y);
+                    if (expires == 0 || expires > System.currentTimeMillis()) {
+                        tile.setImageDeferred(mbTile.getData());
+                        if (tile.isLoaded()) {
+                            if (expires > 0) {
+                                tile.putMetaValue("expires", Long.toString(expires));
+                            }
+                            diskHits.incrementAndGet();
+                            handOffToDecode(tile);
+                            return true;
+                        }
+                    }
+                    else {
+                        expiredImage = mbTile.getData();
+                        expiredAt = expires;
+                    }
+                }
+            }
+            catch (Exception e) {
+                System.err.println("Failed reading " + tile.getCacheKey() + " from disk cache: "
+                        + e.getClass() + ": " + e.getMessage());
+            }
+            return false;
+        }
+        
+        
+        private void saveToDisk() {
+            byte[] bytes = tile.getEncodedImage();
+            if (bytes == null || !tile.isLoaded()) {
+                return;
+            }
+            
+            long expires = 0;
+            String expiresValue = tile.getMetaValue("expires");
+            if (expiresValue != null) {
+                try {
+                    expires = Long.parseLong(expiresValue);
+                }
+                catch (NumberFormatException e) {
+                    // ignore malformed expiration times
+                }
+            }
+            if (expires == 0 && defaultMaxAge > 0) {
+                expires = System.currentTimeMillis() + defaultMaxAge;
+            }
+            
+            int z = tile.coord.getZoom();
+            int x = tile.coord.getCol();
+            int y = tile.coord.getRowAsTMS();
+            try {
+                cacheFile.addTile(bytes, z, x, y);
+                if (expires > 0) {
+                    cacheFile.setTileExpiration(z, x, y, expires);
+                }
+                diskWrites.incrementAndGet();
+            }
+            catch (Exception e) {
+                System.err.println("Failed writing " + tile.getCacheKey() + " to disk cache: "
+                        + e.getClass() + ": " + e.getMessage());
+            }
+        }
+    }
+    
+    
+    private final ITileLoader tileLoader;
+    private final MBTilesFile cacheFile;
+    private long defaultMaxAge = 7L * 24L * 60L * 60L * 1000L;
+    
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong diskWrites = new AtomicLong();
+    private final AtomicLong expiredHits = new AtomicLong();
+    
+    
+    /**
+     * @param tileLoader The loader to load tiles that are not in the disk cache
+     * @param cacheFileName The name of the MBTiles file to use as the disk cache. It
+     *   will be created if it does not exist.
+     */
+    public DiskCachedTileLoader(ITileLoader tileLoader, String cacheFileName) {
+        this(tileLoader, new MBTilesFile(new File(cacheFileName)));
+    }
+    
+    
+    /**
+     * @param tileLoader The loader to load tiles that are not in the disk cache
+     * @param cacheFile The MBTiles file to use as the disk cache
+     */
+    public DiskCachedTileLoader(ITileLoader tileLoader, MBTilesFile cacheFile) {
+        super();
+        this.tileLoader = tileLoader;
+        this.cacheFile = cacheFile;
+    }
+    
+    
+    @Override
+    public ITileLoaderJob createTileLoaderJob(Tile tile) {
+        return new DiskCachedJob(tile);
+    }
+    
+    
+    /**
+     * Returns the number of milliseconds a tile without an "expires" value stays
+     * in the disk cache before it is loaded again. Zero means such tiles never expire.
+     */
+    public long getDefaultMaxAge() {
+        return defaultMaxAge;
+    }
+    
+    
+    public void setDefaultMaxAge(long defaultMaxAge) {
+        this.defaultMaxAge = defaultMaxAge;
+    }
+    
+    
+    /**
+     * Returns the number of tiles that have been loaded from the disk cache
+     */
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+    
+    
+    /**
+     * Returns the number of tiles that have been written to the disk cache
+     */
+    public long getDiskWrites() {
+        return diskWrites.get();
+    }
+    
+    
+    /**
+     * Returns the number of expired tiles that have been loaded from the disk cache
+     * because the wrapped loader failed to load a newer image of them.
+     */
+    public long getExpiredHits() {
+        return expiredHits.get();
+    }
+    
+    
+    /**
+     * Returns the MBTiles file used as the disk cache.
+     */
+    public MBTilesFile getCacheFile() {
+        return cacheFile;
+    }
+    
+    
+    /**
+     * Returns the tile loader used to load tiles that are not in the disk cache.
+     */
+    public ITileLoader getTileLoader() {
+        return tileLoader;
+    }
+    
+    
+    @Override
+    public void setLoadFocus(PCoordinate focus) {
+        super.setLoadFocus(focus);
+        tileLoader.setLoadFocus(focus);
+    }
+    
+    
+    @Override
+    public boolean hasOutstandingJobs() {
+        // Tiles loaded by the wrapped loader are handed off to the decode stage by it...
+        return super.hasOutstandingJobs() || tileLoader.hasOutstandingJobs();
+    }
+    
+    
+    @Override
+    public boolean mayHaveTile(TCoordinate coord) {
+        return tileLoader.mayHaveTile(coord);
+    }
+    
+    
+    @Override
+    public int getMaxLoadRetries() {
+        return tileLoader.getMaxLoadRetries();
+    }
+    
+    
+    @Override
+    public String getSourceId() {
+        return tileLoader.getSourceId();
+    }
+    
+    
+    @Override
+    public int getMinZoom() {
+        return tileLoader.getMinZoom();
+    }
+    
+    
+    @Override
+    public int getMaxZoom() {
+        return tileLoader.getMaxZoom();
+    }
+    
+    
+    @Override
+    public String toString() {
+        return tileLoader.toString();
+    }
+
+}
@@ -1,5 +1,10 @@
 package org.map4j.loaders;
 
+import java.util.List;
+
+import org.map4j.coordinates.PCoordinate;
+import org.map4j.coordinates.TCoordinate;
+
 /**
  * A tile loader is a class capable of loading the image of tiles
  * into tile objects via a background tile loader job.
@@ -15,10 +20,34 @@ public interface ITileLoader {
      * @return
      */
     ITileLoaderJob createTileLoaderJob(Tile tile);
+    
+    
+    /**
+     * Starts loading all of the specified tiles. Loaders that can retrieve many tiles
+     * more efficiently than one at a time (e.g. with a single database query) should 
+     * override this. The default creates and starts one job per tile.
+     * @param tiles The tiles to load, in the order they are most needed
+     */
+    default void startTileLoads(List<Tile> tiles) {
+        for (Tile tile : tiles) {
+            createTileLoaderJob(tile).startTileLoad();
+        }
+    }
+    
+    /**
+     * Returns FALSE if this loader knows, without loading it, that the tile at the specified
+     * coordinate does not exist (e.g. from an index of its tile source). TRUE means the tile
+     * may or may not exist. The controller does not queue jobs for tiles that do not exist.
+     * The default returns TRUE.
+     */
+    default boolean mayHaveTile(TCoordinate coord) {
+        return true;
+    }
+    
 
     /**
      * cancels all outstanding tasks in the queue. This should rollback the state of the tiles in the queue
-     * to loading = false / loaded = false
+     * to loading = false / loaded = false. Only the tasks created by this loader should be canceled.
      */
     void cancelOutstandingJobs();
 
@@ -52,6 +81,25 @@ public interface ITileLoader {
      */
     String getSourceId();
     
+    /**
+     * Sets the "load focus" of this loader, which is the pixel coordinate that is 
+     * most important to the user (usually the center of the displayed map). Loaders
+     * that can prioritize their work should load the tiles closest to the focus first.
+     * The default implementation does nothing.
+     */
+    default void setLoadFocus(PCoordinate focus) {
+    }
+    
+    
+    /**
+     * Recalculates the priority of the jobs waiting to be run, since something other
+     * than the load focus has changed the priority of their tiles (e.g. a tile being
+     * prefetched is now needed for display). The default implementation does nothing.
+     */
+    default void reprioritizeJobs() {
+    }
+    
+    
     /**
      * Returns the minimum zoom level this tile loader can display
      */
@@ -1,7 +1,15 @@
 package org.map4j.loaders;
 
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.map4j.coordinates.TCoordinate;
 import org.map4j.utils.mbtiles.MBTile;
 import org.map4j.utils.mbtiles.MBTilesFile;
 
@@ -16,12 +24,13 @@ public class MBTilesLoader extends AbstractTileLoader {
      * A TileJob that will load a single tile from the MBTiles reader
      * @author Joel Kozikowski
      */
-    private final class MBTilesJob implements ITileLoaderJob {
+    private final class MBTilesJob extends TileLoaderJob {
 
         private final Tile m4jTile;
         private InputStream input;
 
         private MBTilesJob(Tile m4jTile) {
+            super(m4jTile);
             this.m4jTile = m4jTile;
         }
 
@@ -30,40 +39,23 @@ public class MBTilesLoader extends AbstractTileLoader {
             
             if (mbt == null) {
                 // We failed to open the MBTiles file.
+                m4jTile.setError("No MBTiles file to load " + m4jTile.getCacheKey() + " from");
+                m4jTile.finishLoading(false);
                 return;
             }
             
-            synchronized (m4jTile) {
-                
-                if ((m4jTile.isLoaded() && !m4jTile.hasError()) || m4jTile.isLoading()) {
-                    // Tiles loaded without error as well as tiles currently being
-                    // loaded do not need a new job, so simply return.
-                    return;
-                }
-                
-                m4jTile.startLoading();
-            }
-            
             boolean success = false;
             try {
                int z = m4jTile.coord.getZoom();
                int x = m4jTile.coord.getCol();
                int y = m4jTile.coord.getRow(useXYZ);
-               MBTile mbTile = null;
-               try {
-                  mbTile = mbt.getTile(z, x, y);
-               }
-               catch (Exception ex) {
-                  if (getRootCause(ex).getMessage().indexOf("ResultSet closed") > 0) {
-                      throw ex;
-                  }
-               }
+               MBTile mbTile = mbt.getTile(z, x, y);
                if (mbTile != null) {
-                   m4jTile.setImage(mbTile.getImage());
+                   m4jTile.setImageDeferred(mbTile.getData());
                    success = true;
                }
                else {
-                   m4jTile.setError(m4jTile.getCacheKey() + " not found in MBTile database");
+                   m4jTile.setMissing(m4jTile.getCacheKey() + " not found in MBTile database");
                }
             } catch (Exception e) {
                 m4jTile.setError(e.getMessage());
@@ -77,30 +69,156 @@ public class MBTilesLoader extends AbstractTileLoader {
                     }
                 }
             } finally {
-                m4jTile.finishLoading(success);
+                if (success) {
+                    handOffToDecode(m4jTile);
+                }
+                else {
+                    m4jTile.finishLoading(false);
+                }
             }
         }
-
+    }
+    
+    
+    /**
+     * A TileJob that retrieves a chunk of tiles that lie next to one another in the same row
+     * or column (see getChunks()) with a single range query, then hands each tile that was
+     * found off to the decode stage, closest to the load focus first. Since the tiles form
+     * one run, no tile data is read that was not asked for.
+     */
+    private final class MBTilesBatchJob extends TileLoaderJob {
+        
+        private final List<Tile> tiles;
+        
+        private MBTilesBatchJob(List<Tile> tiles) {
+            super(tiles.get(0));
+            this.tiles = tiles;
+        }
+        
+        
         @Override
-        public Tile getTile() {
-            return m4jTile;
+        protected long getJobPriority() {
+            long priority = Long.MAX_VALUE;
+            for (Tile t : tiles) {
+                priority = Math.min(priority, getPriority(t));
+            }
+            return priority;
         }
         
+        
         @Override
-        public void startTileLoad() {
-            startTileLoad(false);
+        protected void loadingCanceled() {
+            for (Tile t : tiles) {
+                t.loadingCanceled();
+            }
         }
-
+        
+        
         @Override
-        public void startTileLoad(boolean force) {
-            jobDispatcher.execute(this);
+        public void run() {
+            if (mbt == null) {
+                for (Tile t : tiles) {
+                    t.setError("No MBTiles file to load " + t.getCacheKey() + " from");
+                    t.finishLoading(false);
+                }
+                return;
+            }
+            
+            int z = tile.coord.getZoom();
+            int minCol = Integer.MAX_VALUE, maxCol = Integer.MIN_VALUE;
+            int minRow = Integer.MAX_VALUE, maxRow = Integer.MIN_VALUE;
+            for (Tile t : tiles) {
+                minCol = Math.min(minCol, t.coord.getCol());
+                maxCol = Math.max(maxCol, t.coord.getCol());
+                minRow = Math.min(minRow, t.coord.getRow(useXYZ));
+                maxRow = Math.max(maxRow, t.coord.getRow(useXYZ));
+            }
+            
+            Map<Long, MBTile> found = new HashMap<>();
+            try {
+                for (MBTile mbTile : mbt.getTiles(z, minCol, minRow, maxCol, maxRow)) {
+                    found.put(((long) mbTile.getColumn() << 32) | mbTile.getRow(), mbTile);
+                }
+            }
+            catch (Exception e) {
+                System.err.println("Failed loading tiles " + z + "/" + minCol + "-" + maxCol + "/" + minRow + "-" + maxRow + ": "
+                        + e.getClass() + ": " + e.getMessage());
+                for (Tile t : tiles) {
+                    t.setError(e.getMessage());
+                    t.finishLoading(false);
+                }
+                return;
+            }
+            
+            // The focus may have moved since the chunk was made...
+            List<Tile> byPriority = new ArrayList<>(tiles);
+            byPriority.sort(Comparator.comparingLong(MBTilesLoader.this::getPriority));
+            for (Tile t : byPriority) {
+                MBTile mbTile = found.get(((long) t.coord.getCol() << 32) | t.coord.getRow(useXYZ));
+                if (mbTile != null) {
+                    t.setImageDeferred(mbTile.getData());
+                    handOffToDecode(t);
+                }
+                else {
+                    t.setMissing(t.getCacheKey() + " not found in MBTile database");
+                    t.finishLoading(false);
+                }
+            }
+        }
+    }
+    
+    
+    /**
+     * The most tiles a single batch job retrieves. Keeping batches small spreads a grid over
+     * all of the loader's threads, and lets its jobs be run (and canceled or reprioritized)
+     * in order of their distance from the load focus.
+     */
+    public static final int MAX_BATCH_TILES = 8;
+    
+    
+    /**
+     * Splits the specified tiles of one zoom level into chunks of up to maxTiles tiles, each
+     * of which lies in a run of consecutive tiles along a row or along a column (whichever
+     * takes fewer runs, e.g. columns for a strip scrolled into view sideways).
+     */
+    static List<List<Tile>> getChunks(List<Tile> tiles, int maxTiles) {
+        List<List<Tile>> rowChunks = getChunks(tiles, maxTiles, true);
+        List<List<Tile>> colChunks = getChunks(tiles, maxTiles, false);
+        return rowChunks.size() <= colChunks.size() ? rowChunks : colChunks;
+    }
+    
+    
+    private static List<List<Tile>> getChunks(List<Tile> tiles, int maxTiles, boolean byRow) {
+        // Each tile's location is packed as major << 32 | minor, where major is
+        // the row (or column) of the runs, and minor its position in the run...
+        Comparator<Tile> order = Comparator.comparingLong(t -> byRow ? 
+                ((long) t.coord.getRowAsXYZ() << 32) | t.coord.getCol() :
+                ((long) t.coord.getCol() << 32) | t.coord.getRowAsXYZ());
+        List<Tile> sorted = new ArrayList<>(tiles);
+        sorted.sort(order);
+        
+        List<List<Tile>> chunks = new ArrayList<>();
+        List<Tile> chunk = null;
+        Tile last = null;
+        for (Tile t : sorted) {
+            boolean adjacent = last != null &&
+                (byRow ? t.coord.getRowAsXYZ() == last.coord.getRowAsXYZ() && t.coord.getCol() == last.coord.getCol() + 1
+                       : t.coord.getCol() == last.coord.getCol() && t.coord.getRowAsXYZ() == last.coord.getRowAsXYZ() + 1);
+            if (!adjacent || chunk.size() >= maxTiles) {
+                chunk = new ArrayList<>();
+                chunks.add(chunk);
+            }
+            chunk.add(t);
+            last = t;
         }
+        return chunks;
     }
     
     
     private MBTilesFile mbt;
     private String sourceId;
     private boolean useXYZ;
+    private final AtomicBoolean indexRequested = new AtomicBoolean();
     
 
     /**
@@ -133,6 +251,54 @@ public class MBTilesLoader extends AbstractTileLoader {
     public ITileLoaderJob createTileLoaderJob(org.map4j.loaders.Tile jmvTile) {
         return new MBTilesJob(jmvTile);
     }
+    
+    
+    /**
+     * Loads the specified tiles in chunks of up to MAX_BATCH_TILES tiles that lie next
+     * to one another (see getChunks()), with one MBTiles query per chunk rather than
+     * one query per tile.
+     */
+    @Override
+    public void startTileLoads(List<Tile> tiles) {
+        Map<Integer, List<Tile>> batches = new HashMap<>();
+        for (Tile t : tiles) {
+            if (claimTile(t, false)) {
+                batches.computeIfAbsent(t.coord.getZoom(), z -> new ArrayList<>()).add(t);
+            }
+        }
+        for (List<Tile> batch : batches.values()) {
+            for (List<Tile> chunk : getChunks(batch, MAX_BATCH_TILES)) {
+                submit(new MBTilesBatchJob(chunk));
+            }
+        }
+    }
+    
+    
+    /**
+     * Answers from the MBTiles file's existence index. The index is built in the background
+     * the first time this is called, and every tile "may" exist until it is ready. If the
+     * index could not be built, it is tried again the next time this is called.
+     */
+    @Override
+    public boolean mayHaveTile(TCoordinate coord) {
+        if (mbt == null) {
+            return true;
+        }
+        if (!mbt.hasExistenceIndex()) {
+            if (indexRequested.compareAndSet(false, true)) {
+                CompletableFuture.runAsync(mbt::getExistenceIndex).exceptionally(ex -> {
+                    Throwable e = (ex.getCause() != null) ? ex.getCause() : ex;
+                    System.err.println("Failed indexing tiles of " + getSourceId() + ": "
+                            + e.getClass() + ": " + e.getMessage());
+                    // Try again the next time it is needed...
+                    indexRequested.set(false);
+                    return null;
+                });
+            }
+            return true;
+        }
+        return mbt.hasTile(coord.getZoom(), coord.getCol(), coord.getRow(useXYZ));
+    }
 
 
     @Override
@@ -50,6 +50,14 @@ public class MapService implements IMapService, ITileLoaderFactory {
     }
 
 
+    /**
+     * Returns the expected image format (usually "png" or "jpg"), or null if none was specified.
+     */
+    public String getImageExtension() {
+        return this.imageExtension;
+    }
+
+
     @Override
     public ITileLoader getTileLoader() {
         return new MapServiceLoader(this);
@@ -1,5 +1,6 @@
 package org.map4j.loaders;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
@@ -18,28 +19,17 @@ import java.util.Map.Entry;
  */
 public class MapServiceLoader extends AbstractTileLoader {
     
-    private final class MapServiceJob implements ITileLoaderJob {
-        private final Tile tile;
+    private final class MapServiceJob extends TileLoaderJob {
         private InputStream input;
-        private boolean force;
 
         private MapServiceJob(Tile tile) {
-            this.tile = tile;
+            super(tile);
         }
 
         @Override
         public void run() {
-            synchronized (tile) {
-                
-                if ((tile.isLoaded() && !tile.hasError()) || tile.isLoading()) {
-                    // Tiles loaded without error as well as tiles currently being
-                    // loaded do not need a new job, so simply return.
-                    return;
-                }
-                
-                tile.startLoading();
-            }
             boolean success = false;
+            boolean handedOff = false;
             try {
                 URLConnection conn = loadTileFromOsm(tile);
                 if (force) {
@@ -47,17 +37,22 @@ public class MapServiceLoader extends AbstractTileLoader {
                 }
                 loadTileMetadata(tile, conn);
                 if ("no-tile".equals(tile.getMetaValue("tile-info"))) {
-                    tile.setError("No tile at this zoom level");
+                    tile.setMissing("No tile at this zoom level");
                 } else {
                     input = conn.getInputStream();
                     try {
-                        tile.setImage(input);
+                        tile.setImageDeferred(input);
                     } finally {
                         input.close();
                         input = null;
                     }
+                    handOffToDecode(tile);
+                    handedOff = true;
                 }
                 success = true;
+            } catch (FileNotFoundException e) {
+                // The server answered "404 Not Found"
+                tile.setMissing(e.getMessage());
             } catch (IOException e) {
                 tile.setError(e.getMessage());
                 if (input == null) {
@@ -69,25 +64,11 @@ public class MapServiceLoader extends AbstractTileLoader {
                     }
                 }
             } finally {
-                tile.finishLoading(success);
+                if (!handedOff) {
+                    tile.finishLoading(success);
+                }
             }
         }
-
-        @Override
-        public Tile getTile() {
-            return tile;
-        }
-
-        @Override
-        public void startTileLoad() {
-            startTileLoad(false);
-        }
-
-        @Override
-        public void startTileLoad(boolean force) {
-            this.force = force;
-            jobDispatcher.execute(this);
-        }
     }
 
     /**
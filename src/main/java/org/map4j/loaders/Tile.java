@@ -1,17 +1,17 @@
 package org.map4j.loaders;
 
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
-
-import javax.imageio.ImageIO;
+import java.util.concurrent.CompletableFuture;
 
 import org.map4j.coordinates.TCoordinate;
 import org.map4j.tinymq.TinyMQ;
 import org.map4j.utils.ImageUtils;
+import org.map4j.utils.TileDecoder;
 
 /**
  * A class that represents a single tile image. As soon as
@@ -20,6 +20,9 @@ import org.map4j.utils.ImageUtils;
  * (even if that is a placeholder image or a temporary image).
  * Once that actual image has been loaded, a TOPIC_LOADED topic
  * will be published to the TinyMQ broker.
+ * <p>A tile may also be loaded with just its encoded image (see
+ * setImageDeferred()), in which case the image is decoded the
+ * first time it is needed.
  * 
  * @author Jan Peter Stotz
  * @author Joel Kozikowski
@@ -39,17 +42,31 @@ public class Tile {
      */
     public static final String TOPIC_LOADED = "loaded";
     
+    /**
+     * The topic published whenever the image of a tile loaded with setImageDeferred()
+     * has been decoded, which changes how much memory the tile uses.
+     */
+    public static final String TOPIC_DECODED = "decoded";
+    
     /**
      * The tile coordinate where this tile is located in the tile grid
      */
     public TCoordinate coord;
     public String sourceId;
     
-    protected BufferedImage image = null;
+    private final long key;
+    
+    protected volatile BufferedImage image = null;
+    
+    /**
+     * The image of this tile in its original encoded form (e.g. PNG or JPEG), if known
+     */
+    protected byte[] encodedImage = null;
 
     public Tile(String sourceId, TCoordinate coord) {
         this.coord = new TCoordinate(coord);
         this.sourceId = sourceId;
+        this.key = TileKey.of(sourceId, coord);
     }
    
     
@@ -65,6 +82,15 @@ public class Tile {
     public void setPlaceholder(BufferedImage placeholder) {
         this.placeholder = placeholder;
     }
+    
+    
+    /**
+     * Returns TRUE if this tile has no image of its own yet, but has a placeholder
+     * image to display in the meantime.
+     */
+    public boolean hasPlaceholder() {
+        return image == null && placeholder != null;
+    }
 
     
     /**
@@ -74,6 +100,9 @@ public class Tile {
      * @return
      */
     public BufferedImage getImage() {
+        if (decodePending) {
+            decode();
+        }
         if (image == null && placeholder != null) {
             return this.placeholder;
         }
@@ -95,32 +124,180 @@ public class Tile {
      */
     public void setImage(BufferedImage image) {
         this.image = image;
+        this.encodedImage = null;
+        this.decodePending = false;
         if (this.image != null) {
             this.status = LoadStatus.LOADED;
             this.placeholder = null;
         }
     }
+    
+    
+    /**
+     * Returns the number of bytes of memory used by the images held by this tile
+     * (its actual image, its encoded image and its placeholder, if any). The shared
+     * "loading" and "error" images are not counted. Since this changes when a deferred
+     * image is decoded, TOPIC_DECODED is published when that happens.
+     */
+    public long getImageBytes() {
+        byte[] encoded = encodedImage;
+        long encodedBytes = (encoded != null) ? encoded.length : 0;
+        return ImageUtils.getImageBytes(image) + ImageUtils.getImageBytes(placeholder) + encodedBytes;
+    }
 
 
     /**
      * Sets the current image displayed by this tile from
-     * the specified byte array.
+     * the specified byte array. The encoded bytes are retained
+     * and can be retrieved with getEncodedImage().
      */
     public void setImage(byte[] bytes) throws IOException {
-        setImage(ImageIO.read(new ByteArrayInputStream(bytes)));
+        setImage(TileDecoder.decode(bytes));
+        if (this.image != null) {
+            this.encodedImage = bytes;
+        }
     }
     
     
     /**
      * Sets the image that will be displayed to the image that is
-     * read from the specified input stream
+     * read from the specified input stream. The encoded bytes are
+     * retained and can be retrieved with getEncodedImage().
      * @param input The stream to read the image data from.
      */
     public void setImage(InputStream input) throws IOException {
-        setImage(ImageIO.read(input));
+        setImage(readBytes(input));
+    }
+    
+    
+    private static byte[] readBytes(InputStream input) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 * 1024);
+        byte[] buffer = new byte[8192];
+        int nRead;
+        while ((nRead = input.read(buffer)) != -1) {
+            bytes.write(buffer, 0, nRead);
+        }
+        return bytes.toByteArray();
+    }
+    
+    
+    /**
+     * Returns the image of this tile in the encoded form (e.g. PNG or JPEG) it was
+     * loaded from, or null if it is not known.
+     */
+    public byte[] getEncodedImage() {
+        return encodedImage;
+    }
+    
+    
+    /**
+     * Sets the encoded form (e.g. PNG or JPEG) of the image this tile is displaying
+     * without decoding it.
+     */
+    public void setEncodedImage(byte[] encodedImage) {
+        this.encodedImage = encodedImage;
     }
 
     
+    /**
+     * Sets the image of this tile to the specified encoded image (e.g. PNG or JPEG)
+     * without decoding it yet. The tile is considered loaded, and the image is decoded
+     * the first time getImage() is called (or when decode() is called), so tiles that
+     * are loaded but never displayed (e.g. prefetched tiles) are never decoded.
+     * If the image turns out to be unreadable, the tile is given an error at that time.
+     */
+    public synchronized void setImageDeferred(byte[] bytes) {
+        // Any image (or placeholder) already held is kept until this one is decoded...
+        this.encodedImage = bytes;
+        this.decodePending = true;
+        this.status = LoadStatus.LOADED;
+    }
+    
+    
+    /**
+     * Sets the image of this tile to the encoded image read from the specified input
+     * stream without decoding it yet (see setImageDeferred(byte[])).
+     */
+    public void setImageDeferred(InputStream input) throws IOException {
+        setImageDeferred(readBytes(input));
+    }
+    
+    
+    /**
+     * Decodes the image set by setImageDeferred() if that has not been done yet.
+     * getImage() does this when needed, but it may be called ahead of time to
+     * decode the image on a thread other than the one painting it. TOPIC_DECODED
+     * is published by the thread that decoded the image.
+     * @return TRUE if this tile has a decoded image
+     */
+    public boolean decode() {
+        boolean decodedNow = false;
+        if (decodePending) {
+            synchronized (this) {
+                if (decodePending) {
+                    decodedNow = true;
+                    BufferedImage decoded = null;
+                    try {
+                        decoded = TileDecoder.decode(encodedImage);
+                    }
+                    catch (IOException | RuntimeException e) {
+                        // Reported as an unreadable image below
+                    }
+                    if (decoded == null) {
+                        setError(getCacheKey() + " has no readable image");
+                    }
+                    this.image = decoded;
+                    this.placeholder = null;
+                    this.decodePending = false;
+                }
+            }
+        }
+        if (decodedNow) {
+            // Let caches re-weigh the tile now that its image is decoded...
+            broker.publish(TOPIC_DECODED, this);
+        }
+        return image != null;
+    }
+    
+    
+    /**
+     * Returns the image getImage() would, except that an image waiting to be decoded
+     * is not decoded. Until it is, the image this tile held before, its placeholder, or
+     * the "loading" image is returned in its place.
+     */
+    public BufferedImage getImageIfDecoded() {
+        if (decodePending) {
+            BufferedImage current = image != null ? image : placeholder;
+            return current != null ? current : getLoadingImage();
+        }
+        return getImage();
+    }
+    
+    
+    /**
+     * Sets whether a tile loader should decode this tile's image as soon as it has been
+     * read (on the loaders' decode stage), rather than leaving it to be decoded when first
+     * needed. This is TRUE by default, and FALSE for tiles that are only being prefetched.
+     */
+    public void setDecodeOnLoad(boolean decodeOnLoad) {
+        this.decodeOnLoad = decodeOnLoad;
+    }
+    
+    
+    public boolean isDecodeOnLoad() {
+        return decodeOnLoad;
+    }
+    
+    
+    /**
+     * Returns TRUE if this tile holds an encoded image that has not been decoded yet
+     * (see setImageDeferred()).
+     */
+    public boolean isDecodePending() {
+        return decodePending;
+    }
+    
+    
     /**
      * Sets the current image displayed by this tile from
      * the specified file name.
@@ -138,6 +315,12 @@ public class Tile {
     
     private volatile LoadStatus status = LoadStatus.UNLOADED;
     private volatile int loadErrorCount = 0;
+    private volatile boolean missing = false;
+    private volatile boolean decodePending = false;
+    private volatile boolean decodeOnLoad = true;
+    private volatile CompletableFuture<Tile> loadFuture = null;
+    private volatile long loadStarted = 0;
+    private volatile long loadFinished = 0;
 
     protected String error_message;
     
@@ -166,6 +349,24 @@ public class Tile {
         error_message = message;
         loadErrorCount++;
     }
+    
+    
+    /**
+     * Records that this tile does not exist in its tile source (as opposed to
+     * an error that might not happen on the next attempt).
+     */
+    public void setMissing(String message) {
+        missing = true;
+        setError(message);
+    }
+    
+    
+    /**
+     * Returns TRUE if this tile is known not to exist in its tile source.
+     */
+    public boolean isMissing() {
+        return missing;
+    }
 
     
     public int getLoadErrorCount() {
@@ -176,8 +377,12 @@ public class Tile {
     /**
      * indicate that loading process for this tile has started
      */
-    public void startLoading() {
+    public synchronized void startLoading() {
         this.status = LoadStatus.LOADING;
+        this.loadStarted = System.nanoTime();
+        if (loadFuture == null || loadFuture.isDone()) {
+            loadFuture = new CompletableFuture<>();
+        }
     }
 
     
@@ -185,23 +390,77 @@ public class Tile {
      * indicate that loading process for this tile has ended
      */
     public void finishLoading(boolean success) {
+        this.loadFinished = System.nanoTime();
         this.status = LoadStatus.LOADED;
         
         // Notify whomever is interested, this tile has finished a loading attempt
         broker.publish(TOPIC_LOADED, this);
+        
+        CompletableFuture<Tile> future = loadFuture;
+        if (future != null) {
+            future.complete(this);
+        }
     }
     
 
     /**
-     * indicate that loading process for this tile has been canceled
+     * indicate that loading process for this tile has been canceled before
+     * it started, returning the tile to the "unloaded" state.
      */
     public void loadingCanceled() {
         this.status = LoadStatus.UNLOADED;
+        
+        CompletableFuture<Tile> future = loadFuture;
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+    
+    
+    /**
+     * Returns the number of nanoseconds the most recent loading attempt took, from the
+     * time it was started (which includes any time spent waiting in a loader's queue)
+     * until it finished. Zero is returned if no loading attempt has finished.
+     */
+    public long getLoadTimeNanos() {
+        long started = loadStarted;
+        long finished = loadFinished;
+        return (started != 0 && finished - started >= 0) ? finished - started : 0;
+    }
+    
+    
+    /**
+     * Returns TRUE if a loading attempt of this tile has ever been started. A tile may
+     * finish loading without one (e.g. a tile known not to exist in its tile source),
+     * in which case it should not be counted as a load.
+     */
+    public boolean isLoadAttempted() {
+        return loadStarted != 0;
+    }
+    
+    
+    /**
+     * Returns a future that completes with this tile when the current (or most recent)
+     * loading attempt has finished, or is canceled if the attempt is canceled before
+     * it started. A new future is created each time a new loading attempt starts. 
+     * NULL is returned if no loading attempt has ever been started.
+     */
+    public CompletableFuture<Tile> getLoadFuture() {
+        return loadFuture;
     }
 
     
     /**
-     * Returns a key unit to this tile that can be used for cache storage.
+     * Returns the packed 64 bit key of this tile (see TileKey). This is the 
+     * key used for cache storage.
+     */
+    public long getKey() {
+        return key;
+    }
+    
+    
+    /**
+     * Returns a human readable key unique to this tile, useful for messages and logging.
      */
     public String getCacheKey() {
         return Tile.getCacheKey(this.sourceId, this.coord);
@@ -298,7 +557,7 @@ public class Tile {
     private static BufferedImage ERROR_IMAGE = null;;
     
     private static BufferedImage loadResourceImage(String path) {
-        return ImageUtils.loadResourceImage(path);
+        return TileDecoder.toImageType(ImageUtils.loadResourceImage(path));
     }
 
     
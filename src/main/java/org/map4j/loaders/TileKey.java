@@ -0,0 +1,130 @@
+package org.map4j.loaders;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.map4j.coordinates.TCoordinate;
+
+/**
+ * Packs the identity of a tile (its tile source, zoom level, column and XYZ row) into
+ * a single 64 bit number that can be used as a cache key without allocating or hashing
+ * strings. Tile sources are identified by a small "source index" that is assigned the
+ * first time each source id is seen.
+ * <p>The bits of a key are laid out as: source index (11) | zoom (5) | column (24) | row (24).
+ * This supports 2048 tile sources and zoom levels up to 24.
+ *
+ * @author Joel Kozikowski
+ */
+public final class TileKey {
+    
+    public static final int MAX_SOURCES = 1 << 11;
+    public static final int MAX_ZOOM = 24;
+    
+    private static final int ROW_BITS = 24;
+    private static final int COL_BITS = 24;
+    private static final int ZOOM_BITS = 5;
+    
+    private static final long ROW_MASK = (1L << ROW_BITS) - 1;
+    private static final long COL_MASK = (1L << COL_BITS) - 1;
+    private static final long ZOOM_MASK = (1L << ZOOM_BITS) - 1;
+    
+    private static final int COL_SHIFT = ROW_BITS;
+    private static final int ZOOM_SHIFT = COL_SHIFT + COL_BITS;
+    private static final int SOURCE_SHIFT = ZOOM_SHIFT + ZOOM_BITS;
+    
+    private static final ConcurrentHashMap<String, Integer> sourceIndexes = new ConcurrentHashMap<>();
+    private static final AtomicReferenceArray<String> sourceIds = new AtomicReferenceArray<>(MAX_SOURCES);
+    private static final AtomicInteger nextSourceIndex = new AtomicInteger();
+    
+    
+    private TileKey() {
+    }
+    
+    
+    /**
+     * Returns the source index assigned to the specified source id, assigning
+     * a new one if this source has not been seen before.
+     */
+    public static int getSourceIndex(String sourceId) {
+        sourceId = String.valueOf(sourceId);
+        Integer index = sourceIndexes.get(sourceId);
+        if (index == null) {
+            index = sourceIndexes.computeIfAbsent(sourceId, id -> {
+                int newIndex = nextSourceIndex.getAndIncrement();
+                if (newIndex >= MAX_SOURCES) {
+                    throw new IllegalStateException("Too many tile sources. Can not assign an index to " + id);
+                }
+                sourceIds.set(newIndex, id);
+                return newIndex;
+            });
+        }
+        return index;
+    }
+    
+    
+    /**
+     * Returns the key of the tile at the specified coordinate from the specified source.
+     */
+    public static long of(String sourceId, TCoordinate coord) {
+        return pack(getSourceIndex(sourceId), coord.getZoom(), coord.getCol(), coord.getRowAsXYZ());
+    }
+    
+    
+    /**
+     * Returns the key of the specified tile location.
+     * @param sourceIndex The index of the tile source, as returned by getSourceIndex()
+     * @param rowXYZ The row of the tile in XYZ tile space
+     * @throws IllegalArgumentException if the zoom level is outside of 0 to MAX_ZOOM, as the
+     *   column and row of such a tile do not fit in a key
+     */
+    public static long pack(int sourceIndex, int zoom, int col, int rowXYZ) {
+        if (zoom < 0 || zoom > MAX_ZOOM) {
+            throw new IllegalArgumentException("Zoom level " + zoom + " is outside of the supported range 0 to " + MAX_ZOOM);
+        }
+        return ((long) sourceIndex << SOURCE_SHIFT) |
+               ((zoom & ZOOM_MASK) << ZOOM_SHIFT) |
+               ((col & COL_MASK) << COL_SHIFT) |
+               (rowXYZ & ROW_MASK);
+    }
+    
+    
+    public static int getSourceIndex(long key) {
+        return (int) (key >>> SOURCE_SHIFT);
+    }
+    
+    
+    /**
+     * Returns the source id of the source a key was created for.
+     */
+    public static String getSourceId(long key) {
+        return sourceIds.get(getSourceIndex(key));
+    }
+    
+    
+    public static int getZoom(long key) {
+        return (int) ((key >>> ZOOM_SHIFT) & ZOOM_MASK);
+    }
+    
+    
+    public static int getCol(long key) {
+        return (int) ((key >>> COL_SHIFT) & COL_MASK);
+    }
+    
+    
+    /**
+     * Returns the row (in XYZ tile space) of a key.
+     */
+    public static int getRowAsXYZ(long key) {
+        return (int) (key & ROW_MASK);
+    }
+    
+    
+    /**
+     * Returns a human readable version of a key, in the same form as Tile.getCacheKey()
+     */
+    public static String toString(long key) {
+        return getZoom(key) + "/" + getCol(key) + "/" + getRowAsXYZ(key) + "@" + getSourceId(key);
+    }
+
+}
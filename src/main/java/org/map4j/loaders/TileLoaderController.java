@@ -1,17 +1,48 @@
 package org.map4j.loaders;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.map4j.coordinates.PCoordinate;
+import org.map4j.coordinates.TBox;
 import org.map4j.coordinates.TCoordinate;
 import org.map4j.loaders.cache.ITileCache;
+import org.map4j.loaders.cache.NegativeTileCache;
+import org.map4j.loaders.cache.TileCacheSnapshot;
 
 /**
  * A TileLoaderController manages the loading of tiles by queuing up tile load jobs
  * in the tile loader if the tile is not already available in the tile cache.
+ * Requests for a tile that is already queued or being loaded are coalesced
+ * into the one load job (and one load future) that is already in flight.
+ * <p>Tiles found not to exist in the tile source are remembered in a negative cache
+ * (see {@link NegativeTileCache}), so they are not looked up again.
  */
 public class TileLoaderController {
 
     private ITileLoader tileLoader;
     private ITileCache tileCache;
     
+    /**
+     * The tiles that are queued or in the process of being loaded, keyed by tile key
+     */
+    private final ConcurrentHashMap<Long, Tile> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong jobsCoalesced = new AtomicLong();
+    
+    /**
+     * The default number of missing tiles remembered by the negative cache
+     */
+    public static final int DEFAULT_MISSING_TILES = 100000;
+    
+    private volatile NegativeTileCache missingTiles = new NegativeTileCache(DEFAULT_MISSING_TILES);
+    private final AtomicLong missingTilesSkipped = new AtomicLong();
+    
     /**
      * @param tileSource The initial source to load tiles from
      * @param listener The listener to be notified when tiles have been loaded.
@@ -31,20 +62,392 @@ public class TileLoaderController {
      *   that is created with a corresponding loader job started.
      */
     public Tile getTile(TCoordinate coord) {
+        Tile tile = lookupTile(coord, true);
+        if (promoteToDisplay(tile)) {
+            tileLoader.reprioritizeJobs();
+        }
+        if (needsLoad(tile) && claimInFlight(tile)) {
+            tileLoader.createTileLoaderJob(tile).startTileLoad();
+            trackInFlight(tile);
+        }
+        return tile;
+    }
 
+    
+    /**
+     * Retrieves several tiles at once. Tiles that are not in the cache are handed to the 
+     * tile loader as a single batch, which allows loaders such as MBTilesLoader to 
+     * retrieve them much more efficiently than one at a time.
+     * @param coords The coordinates of the tiles to retrieve, in the order they are most needed
+     * @return the tiles, in the same order as coords
+     */
+    public List<Tile> getTiles(List<TCoordinate> coords) {
+        return getTiles(coords, true);
+    }
+    
+    
+    /**
+     * Retrieves several tiles at once. If forDisplay is FALSE (i.e. the tiles are only being
+     * prefetched), new tiles are given no placeholders and are not decoded as they load.
+     */
+    private List<Tile> getTiles(List<TCoordinate> coords, boolean forDisplay) {
+        List<Tile> tiles = new ArrayList<>(coords.size());
+        List<Tile> toLoad = new ArrayList<>();
+        boolean promoted = false;
+        for (TCoordinate coord : coords) {
+            Tile tile = lookupTile(coord, forDisplay);
+            if (forDisplay && promoteToDisplay(tile)) {
+                promoted = true;
+            }
+            if (needsLoad(tile) && claimInFlight(tile)) {
+                toLoad.add(tile);
+            }
+            tiles.add(tile);
+        }
+        if (promoted) {
+            tileLoader.reprioritizeJobs();
+        }
+        
+        if (!toLoad.isEmpty()) {
+            try {
+                tileLoader.startTileLoads(toLoad);
+            }
+            catch (RuntimeException ex) {
+                // Release the tiles, or every later request for them would
+                // wait on a load that never happens...
+                for (Tile tile : toLoad) {
+                    inFlight.remove(tile.getKey(), tile);
+                    if (tile.isLoading()) {
+                        tile.loadingCanceled();
+                    }
+                }
+                throw ex;
+            }
+            for (Tile tile : toLoad) {
+                trackInFlight(tile);
+            }
+        }
+        return tiles;
+    }
+    
+    
+    /**
+     * Retrieves all of the tiles in the specified tile box in row by row order, 
+     * starting at the upper left of the box.
+     * @see #getTiles(List)
+     */
+    public List<Tile> getTiles(TBox box) {
+        List<TCoordinate> coords = new ArrayList<>(box.getWidth() * box.getHeight());
+        for (int row = box.t1.getRow(); row <= box.t2.getRow(); row++) {
+            for (int col = box.t1.getCol(); col <= box.t2.getCol(); col++) {
+                coords.add(box.t1.getT(col, row));
+            }
+        }
+        return getTiles(coords);
+    }
+    
+    
+    /**
+     * Starts loading the specified tiles into the cache (if they are not already there)
+     * without waiting for them. Prefetched tiles are not given placeholders, and their
+     * images are not decoded until needed, since they are not displayed yet.
+     * @param coords The coordinates of the tiles to load, most important first
+     */
+    public void prefetch(List<TCoordinate> coords) {
+        getTiles(coords, false);
+    }
+    
+    
+    /**
+     * Starts loading those of the specified tiles that are not already cached or loading,
+     * but only as many as the cache has room for alongside reservedTiles other tiles (e.g.
+     * the tiles currently displayed), so prefetching does not evict them. If the cache has
+     * a byte budget, only as many tiles as fit in what is left of it are loaded as well.
+     * @param coords The coordinates of the tiles to load, most important first
+     * @param reservedTiles The number of cache entries to leave alone
+     * @return the number of tiles that were started loading
+     */
+    public int prefetch(List<TCoordinate> coords, int reservedTiles) {
+        String sourceId = tileLoader.getSourceId();
+        int room = tileCache.getCacheSize() - reservedTiles;
+        long maxBytes = tileCache.getMaxBytes();
+        long byteRoom = maxBytes - tileCache.getStats().getBytesHeld();
+        List<TCoordinate> toLoad = new ArrayList<>();
+        for (TCoordinate coord : coords) {
+            if (toLoad.size() >= room) {
+                break;
+            }
+            if (tileCache.peekTile(sourceId, coord) == null &&
+                !inFlight.containsKey(TileKey.of(sourceId, coord))) {
+                if (maxBytes > 0) {
+                    // Assume the tile's image will be decoded to four bytes per pixel...
+                    long tileBytes = 4L * coord.getTileSize() * coord.getTileSize();
+                    if (tileBytes > byteRoom) {
+                        break;
+                    }
+                    byteRoom -= tileBytes;
+                }
+                toLoad.add(coord);
+            }
+        }
+        if (!toLoad.isEmpty()) {
+            getTiles(toLoad, false);
+        }
+        return toLoad.size();
+    }
+    
+    
+    /**
+     * Saves the most recently used tiles of the tile cache to the specified file,
+     * so they can be restored with restoreCacheSnapshot() the next time the
+     * application starts.
+     * @param maxTiles the maximum number of tiles to save
+     * @param includeImages TRUE to save the tiles' encoded images as well. This makes
+     *   restoring much faster when tiles come from the network, at the cost of a larger file.
+     */
+    public void saveCacheSnapshot(File file, int maxTiles, boolean includeImages) throws IOException {
+        TileCacheSnapshot.of(tileCache, maxTiles, includeImages).save(file);
+    }
+    
+    
+    /**
+     * Warms up the tile cache in the background from a snapshot saved by saveCacheSnapshot().
+     * Tiles saved with their images are cached directly (and decoded when first displayed).
+     * As many of the rest as the cache has room for are prefetched from the tile loader (see
+     * prefetch(List, int)). Tiles of other tile sources are ignored.
+     * @return a future that completes with the number of tiles restored or prefetched
+     *   once the snapshot has been read (prefetched tiles may still be loading).
+     */
+    public CompletableFuture<Integer> restoreCacheSnapshot(File file) {
+        return CompletableFuture.supplyAsync(() -> {
+            TileCacheSnapshot snapshot;
+            try {
+                snapshot = TileCacheSnapshot.load(file);
+            }
+            catch (IOException ex) {
+                throw new RuntimeException("Could not read tile cache snapshot " + file, ex);
+            }
+            
+            String sourceId = tileLoader.getSourceId();
+            List<TCoordinate> toLoad = new ArrayList<>();
+            List<TileCacheSnapshot.Entry> entries = new ArrayList<>(snapshot.getEntries());
+            // Add the hottest tiles last, so they end up as the most recently used...
+            Collections.reverse(entries);
+            int restored = 0;
+            for (TileCacheSnapshot.Entry entry : entries) {
+                if (!sourceId.equals(entry.sourceId) ||
+                    entry.zoom < getMinZoom() || entry.zoom > getMaxZoom()) {
+                    continue;
+                }
+                TCoordinate coord = entry.getCoordinate();
+                if (entry.getEncodedImage() != null &&
+                    !inFlight.containsKey(TileKey.of(sourceId, coord)) &&
+                    tileCache.peekTile(sourceId, coord) == null) {
+                    // Restored tiles are only decoded if they are displayed...
+                    Tile tile = new Tile(sourceId, coord);
+                    tile.setImageDeferred(entry.getEncodedImage());
+                    tileCache.addTile(tile);
+                    restored++;
+                    continue;
+                }
+                toLoad.add(coord);
+            }
+            
+            // Only prefetch what fits alongside the tiles already cached (restored or not)...
+            Collections.reverse(toLoad);
+            int prefetched = prefetch(toLoad, tileCache.getTileCount());
+            return restored + prefetched;
+        });
+    }
+    
+    
+    /**
+     * Returns the tile at the specified coordinate from the cache (or from the tiles
+     * in flight), creating a new one if it is in neither place. If forDisplay is TRUE, 
+     * a new tile is decoded as soon as it loads (see Tile.setDecodeOnLoad()) and is given
+     * a placeholder image. Otherwise, a new tile is left undecoded. Tiles that already
+     * exist are left as they are (see promoteToDisplay()).
+     */
+    private Tile lookupTile(TCoordinate coord, boolean forDisplay) {
         Tile tile = tileCache.getTile(tileLoader.getSourceId(), coord);
         if (tile == null) {
+            // A tile may have been evicted from the cache while its load
+            // is still in flight. If so, it is put back rather than loaded twice...
+            tile = inFlight.get(TileKey.of(tileLoader.getSourceId(), coord));
+            if (tile != null) {
+                jobsCoalesced.incrementAndGet();
+                tileCache.addTile(tile);
+                return tile;
+            }
+            
             tile = new Tile(tileLoader.getSourceId(), coord);
+            tile.setDecodeOnLoad(forDisplay);
             tileCache.addTile(tile);
-            tile.setPlaceholder(tileCache.getPlaceholder(tileLoader.getSourceId(), coord));
-        }
-        if (!tile.isLoaded()) {
-            if (tile.getLoadErrorCount() <= tileLoader.getMaxLoadRetries()) {
-               tileLoader.createTileLoaderJob(tile).startTileLoad();
+            if (isKnownMissing(tile)) {
+                // No need to load it, or make a placeholder for it. Since no loading attempt
+                // is started, it is not counted as a load by the cache's statistics...
+                missingTilesSkipped.incrementAndGet();
+                tile.setMissing(tile.getCacheKey() + " does not exist in " + tileLoader.getSourceId());
+                tile.finishLoading(false);
+            }
+            else if (forDisplay) {
+                tile.setPlaceholder(tileCache.getPlaceholder(tileLoader.getSourceId(), coord));
             }
         }
         return tile;
     }
+    
+    
+    /**
+     * Marks a tile that was only being prefetched as needed for display after all, so it
+     * is decoded as soon as it loads. Returns TRUE if the tile is still loading, in which
+     * case its load job now deserves a better priority (see AbstractTileLoader.getPriority()).
+     */
+    private boolean promoteToDisplay(Tile tile) {
+        if (tile.isDecodeOnLoad()) {
+            return false;
+        }
+        tile.setDecodeOnLoad(true);
+        return tile.isLoading();
+    }
+    
+    
+    /**
+     * Returns TRUE if the specified tile is known not to exist in the tile source,
+     * either from the negative cache or from the tile loader itself.
+     */
+    private boolean isKnownMissing(Tile tile) {
+        NegativeTileCache missing = missingTiles;
+        if (missing != null && missing.isMissing(tile.getKey())) {
+            return true;
+        }
+        return !tileLoader.mayHaveTile(tile.coord);
+    }
+    
+    
+    private boolean needsLoad(Tile tile) {
+        return !tile.isLoaded() && tile.getLoadErrorCount() <= tileLoader.getMaxLoadRetries();
+    }
+    
+    
+    /**
+     * Retrieves a tile the same way getTile() does, returning a future that completes
+     * with the tile once it has finished loading (successfully or not). If the tile is 
+     * already loaded, or will not be loaded because it has exceeded its retry count, the 
+     * future returned is already complete. If the load is canceled before it starts (see
+     * cancelOutstandingJobs()), the future completes exceptionally with a CancellationException.
+     * @param coord The tile coordinate of the tile to load
+     */
+    public CompletableFuture<Tile> getTileAsync(TCoordinate coord) {
+        Tile tile = getTile(coord);
+        CompletableFuture<Tile> future = tile.getLoadFuture();
+        if (future != null && tile.isLoading()) {
+            // Hand out a dependent future so callers can not complete or
+            // cancel the load on behalf of everyone else...
+            return future.thenApply(t -> t);
+        }
+        else {
+            return CompletableFuture.completedFuture(tile);
+        }
+    }
+    
+    
+    /**
+     * Retrieves all of the tiles in the specified tile box, returning a future for each one.
+     * The futures are in row by row order, starting at the upper left of the box. Use
+     * CompletableFuture.allOf() to wait for all of them.
+     * @see #getTileAsync(TCoordinate)
+     */
+    public List<CompletableFuture<Tile>> getTilesAsync(TBox box) {
+        List<CompletableFuture<Tile>> futures = new ArrayList<>(box.getWidth() * box.getHeight());
+        for (int row = box.t1.getRow(); row <= box.t2.getRow(); row++) {
+            for (int col = box.t1.getCol(); col <= box.t2.getCol(); col++) {
+                futures.add(getTileAsync(box.t1.getT(col, row)));
+            }
+        }
+        return futures;
+    }
+    
+    
+    /**
+     * Registers the specified tile as in flight, returning TRUE if the caller should start
+     * loading it. If a load for the same tile is already in flight, FALSE is returned and
+     * the request is coalesced into that load.
+     */
+    private boolean claimInFlight(Tile tile) {
+        if (inFlight.putIfAbsent(tile.getKey(), tile) != null) {
+            jobsCoalesced.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+    
+    
+    /**
+     * Removes the specified tile from the tiles in flight once its load has completed.
+     */
+    private void trackInFlight(Tile tile) {
+        Long key = tile.getKey();
+        CompletableFuture<Tile> future = tile.getLoadFuture();
+        if (future != null) {
+            future.whenComplete((t, ex) -> {
+                inFlight.remove(key, tile);
+                NegativeTileCache missing = missingTiles;
+                if (missing != null && tile.isMissing()) {
+                    missing.markMissing(key);
+                }
+            });
+        }
+        else {
+            // This loader's jobs do not report their completion
+            inFlight.remove(key, tile);
+        }
+    }
+    
+    
+    /**
+     * Returns the number of tile requests that have been coalesced into a 
+     * load that was already in flight rather than starting a new load job.
+     */
+    public long getJobsCoalesced() {
+        return jobsCoalesced.get();
+    }
+    
+    
+    /**
+     * Returns the number of tiles that were not loaded because they were known
+     * not to exist in the tile source.
+     */
+    public long getMissingTilesSkipped() {
+        return missingTilesSkipped.get();
+    }
+    
+    
+    /**
+     * Returns the cache of tiles known not to exist in the tile source, or
+     * null if there is none.
+     */
+    public NegativeTileCache getMissingTiles() {
+        return missingTiles;
+    }
+    
+    
+    /**
+     * Sets the cache used to remember tiles that do not exist in the tile source. Use a
+     * cache whose entries expire for tile sources that may gain tiles while running
+     * (e.g. online services). NULL turns negative caching off.
+     */
+    public void setMissingTiles(NegativeTileCache missingTiles) {
+        this.missingTiles = missingTiles;
+    }
+    
+    
+    /**
+     * Returns the number of tile loads that are currently queued or in progress.
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
 
     
     public ITileCache getTileCache() {
@@ -66,6 +469,15 @@ public class TileLoaderController {
     }
     
     
+    /**
+     * Tells the tile loader what pixel coordinate is currently most important
+     * (e.g. the center of the display) so the tiles closest to it can be loaded first.
+     */
+    public void setLoadFocus(PCoordinate focus) {
+        tileLoader.setLoadFocus(focus);
+    }
+    
+    
     public int getMinZoom() {
         return tileLoader.getMinZoom();
     }
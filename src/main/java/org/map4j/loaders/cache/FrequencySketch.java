@@ -0,0 +1,101 @@
+package org.map4j.loaders.cache;
+
+/**
+ * A count-min sketch that estimates how often each tile key has been accessed recently,
+ * using a fixed amount of memory no matter how many distinct keys are seen. Each key
+ * has four 4 bit counters (so estimates top out at 15), and all counters are halved
+ * periodically so that the estimates reflect recent history rather than all time.
+ * <p>This is the frequency filter used by the "TinyLFU" cache admission policy. This
+ * class is not thread safe.
+ *
+ * @author Joel Kozikowski
+ */
+public class FrequencySketch {
+    
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int additions;
+    
+    
+    /**
+     * @param expectedEntries The number of entries in the cache this sketch is for
+     */
+    public FrequencySketch(int expectedEntries) {
+        int size = 16;
+        while (size < expectedEntries) {
+            size <<= 1;
+        }
+        table = new long[size];
+        tableMask = size - 1;
+        sampleSize = 10 * size;
+    }
+    
+    
+    /**
+     * Returns the estimated number of times the specified key has been accessed recently.
+     */
+    public int frequency(long key) {
+        long hash = spread(key);
+        int start = (int) (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int offset = (start + i) << 2;
+            int count = (int) ((table[indexOf(hash, i)] >>> offset) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+    
+    
+    /**
+     * Records an access of the specified key.
+     */
+    public void increment(long key) {
+        long hash = spread(key);
+        int start = (int) (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int offset = (start + i) << 2;
+            if (((table[index] >>> offset) & 0xfL) != 0xfL) {
+                table[index] += 1L << offset;
+                added = true;
+            }
+        }
+        
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+    
+    
+    /**
+     * Halves every counter, so old accesses gradually stop counting.
+     */
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions >>>= 1;
+    }
+    
+    
+    private int indexOf(long hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += (h >>> 32);
+        return (int) h & tableMask;
+    }
+    
+    
+    private static long spread(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return key ^ (key >>> 29);
+    }
+
+}
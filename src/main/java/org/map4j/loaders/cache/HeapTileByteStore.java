@@ -0,0 +1,95 @@
+package org.map4j.loaders.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * An {@link ITileByteStore} that holds encoded tile images on the Java heap up
+ * to a byte budget, discarding the least recently used images when the budget
+ * is exceeded.
+ *
+ * @author Joel Kozikowski
+ */
+public class HeapTileByteStore implements ITileByteStore {
+    
+    private final LinkedHashMap<Long, byte[]> images = new LinkedHashMap<>(256, 0.75f, true);
+    private long maxBytes;
+    private long bytesHeld;
+    
+    
+    /**
+     * @param maxBytes the maximum number of bytes of encoded images to hold
+     */
+    public HeapTileByteStore(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+    
+    
+    @Override
+    public synchronized byte[] get(long key) {
+        return images.get(key);
+    }
+    
+    
+    @Override
+    public synchronized void put(long key, byte[] bytes) {
+        byte[] old = images.put(key, bytes);
+        if (old != null) {
+            bytesHeld -= old.length;
+        }
+        bytesHeld += bytes.length;
+        trim();
+    }
+    
+    
+    @Override
+    public synchronized void remove(long key) {
+        byte[] old = images.remove(key);
+        if (old != null) {
+            bytesHeld -= old.length;
+        }
+    }
+    
+    
+    /**
+     * Discards the least recently used images until the store is within its budget
+     */
+    private void trim() {
+        Iterator<byte[]> itr = images.values().iterator();
+        while (bytesHeld > maxBytes && itr.hasNext()) {
+            bytesHeld -= itr.next().length;
+            itr.remove();
+        }
+    }
+    
+    
+    @Override
+    public synchronized int getCount() {
+        return images.size();
+    }
+    
+    
+    @Override
+    public synchronized long getBytesHeld() {
+        return bytesHeld;
+    }
+    
+    
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+    
+    
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trim();
+    }
+    
+    
+    @Override
+    public synchronized void clear() {
+        images.clear();
+        bytesHeld = 0;
+    }
+
+}
@@ -0,0 +1,49 @@
+package org.map4j.loaders.cache;
+
+/**
+ * Interface for a store of encoded (e.g. PNG or JPEG) tile images, keyed by
+ * packed tile key (see {@link org.map4j.loaders.TileKey}). Stores are expected to
+ * be bounded, discarding entries as they see fit, and must be thread safe.
+ *
+ * @author Joel Kozikowski
+ */
+public interface ITileByteStore {
+    
+    /**
+     * Returns the encoded image stored for the specified key, or null
+     * if there is none.
+     */
+    byte[] get(long key);
+    
+    
+    /**
+     * Stores the encoded image of the specified key, replacing any image
+     * already stored for it.
+     */
+    void put(long key, byte[] bytes);
+    
+    
+    /**
+     * Removes the image stored for the specified key (if any).
+     */
+    void remove(long key);
+    
+    
+    /**
+     * Returns the number of images in the store.
+     */
+    int getCount();
+    
+    
+    /**
+     * Returns the number of bytes of encoded images held by the store.
+     */
+    long getBytesHeld();
+    
+    
+    /**
+     * Removes all images from the store.
+     */
+    void clear();
+
+}
@@ -1,6 +1,8 @@
 package org.map4j.loaders.cache;
 
 import java.awt.image.BufferedImage;
+import java.util.Collections;
+import java.util.List;
 
 import org.map4j.coordinates.TCoordinate;
 import org.map4j.loaders.Tile;
@@ -25,6 +27,16 @@ public interface ITileCache {
      *         present in the cache
      */
     Tile getTile(String sourceId, TCoordinate coord);
+    
+    
+    /**
+     * Retrieves a tile from the cache if present, the same way getTile() does, but
+     * without counting it as a use of the tile (i.e. without affecting which tiles are
+     * evicted or the cache's statistics). The default simply calls getTile().
+     */
+    default Tile peekTile(String sourceId, TCoordinate coord) {
+        return getTile(sourceId, coord);
+    }
 
     
     /**
@@ -56,9 +68,38 @@ public interface ITileCache {
     int getCacheSize();
 
 
+    /**
+     * Returns the maximum number of bytes the images of the cached tiles may use,
+     * or zero if the cache is only limited by its tile count.
+     */
+    default long getMaxBytes() {
+        return 0;
+    }
+    
+    
     /**
      * Retrieves a placeholder image from the cache for the specified tile coordinates
      * If no such image can be made, null should be returned.
+     * @see TilePlaceholders
      */
     BufferedImage getPlaceholder(String sourceId, TCoordinate coord);
+    
+    
+    /**
+     * Returns a snapshot of the statistics of this cache (hits, misses, evictions, etc.)
+     * Caches that do not keep statistics only report their size.
+     */
+    default TileCacheStats getStats() {
+        return TileCacheStats.of(this);
+    }
+    
+    
+    /**
+     * Returns up to maxTiles of the most recently used tiles in the cache, most recently
+     * used first (see {@link TileCacheSnapshot}). Caches that do not track usage return
+     * an empty list.
+     */
+    default List<Tile> getRecentTiles(int maxTiles) {
+        return Collections.emptyList();
+    }
 }
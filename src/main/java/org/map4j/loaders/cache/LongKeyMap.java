@@ -0,0 +1,170 @@
+package org.map4j.loaders.cache;
+
+import java.util.Arrays;
+
+/**
+ * A hash map with primitive long keys that uses open addressing (linear probing) so that
+ * lookups neither allocate nor box their keys. Null values are not supported: a null
+ * value marks an empty slot. This class is not thread safe.
+ *
+ * @author Joel Kozikowski
+ */
+public class LongKeyMap<V> {
+    
+    private long[] keys;
+    private Object[] values;
+    private int size;
+    private int mask;
+    private int resizeAt;
+    
+    
+    public LongKeyMap() {
+        this(16);
+    }
+    
+    
+    /**
+     * @param expectedSize The number of entries the map should hold without resizing
+     */
+    public LongKeyMap(int expectedSize) {
+        int capacity = 16;
+        while (capacity * 3 / 4 < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+    
+    
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        resizeAt = capacity * 3 / 4;
+    }
+    
+    
+    /**
+     * Spreads the bits of a key so keys that differ only in their high
+     * bits (e.g. the same tile from two sources) land in different slots.
+     */
+    static int hash(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return (int) (key ^ (key >>> 32));
+    }
+    
+    
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        for (int slot = hash(key) & mask; values[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return (V) values[slot];
+            }
+        }
+        return null;
+    }
+    
+    
+    /**
+     * Associates the specified value with the specified key, returning the
+     * value previously associated with the key (or null if there was none).
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("LongKeyMap does not support null values");
+        }
+        int slot = hash(key) & mask;
+        for (; values[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                V oldValue = (V) values[slot];
+                values[slot] = value;
+                return oldValue;
+            }
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size > resizeAt) {
+            rehash(keys.length << 1);
+        }
+        return null;
+    }
+    
+    
+    /**
+     * Removes the entry for the specified key, returning its value (or null if there was none).
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        for (int slot = hash(key) & mask; values[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                V oldValue = (V) values[slot];
+                closeGap(slot);
+                size--;
+                return oldValue;
+            }
+        }
+        return null;
+    }
+    
+    
+    /**
+     * Empties the specified slot, moving any later entries of the same probe
+     * sequence back so that they can still be found.
+     */
+    private void closeGap(int gap) {
+        int slot = gap;
+        while (true) {
+            slot = (slot + 1) & mask;
+            if (values[slot] == null) {
+                break;
+            }
+            int home = hash(keys[slot]) & mask;
+            // Only move the entry if its home slot is not between the gap and its current slot
+            if (((slot - home) & mask) >= ((slot - gap) & mask)) {
+                keys[gap] = keys[slot];
+                values[gap] = values[slot];
+                gap = slot;
+            }
+        }
+        values[gap] = null;
+    }
+    
+    
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (values[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+    
+    
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+    
+    
+    public int size() {
+        return size;
+    }
+    
+    
+    public boolean isEmpty() {
+        return size == 0;
+    }
+    
+    
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+}
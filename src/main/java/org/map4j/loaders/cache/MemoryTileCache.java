@@ -2,17 +2,31 @@
 package org.map4j.loaders.cache;
 
 import java.awt.image.BufferedImage;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Logger;
 
 import org.map4j.coordinates.TCoordinate;
 import org.map4j.loaders.Tile;
+import org.map4j.loaders.TileKey;
 
 /**
  * {@link ITileCache} implementation that stores all {@link Tile} objects in
  * memory up to a certain limit ({@link #getCacheSize()}). If the limit is
  * exceeded the least recently used {@link Tile} objects will be deleted.
+ * <p>The cache can also be given a byte budget ({@link #getMaxBytes()}), in which
+ * case least recently used tiles are also deleted whenever the decoded images of 
+ * the cached tiles use more memory than the budget allows. Since tiles are usually
+ * cached before they are loaded, each tile is re-weighed whenever it is retrieved,
+ * whenever it finishes loading, and whenever its deferred image is decoded.
+ * <p>An optional "W-TinyLFU" admission filter ({@link #setAdmissionFilter(boolean)}) keeps
+ * tiles that are only requested once (e.g. during a bulk download or a fast zoom sweep)
+ * from flushing out tiles that are requested often. New tiles enter a small LRU "window"
+ * (so tiles just panned into view are kept), and a tile leaving the window is only
+ * admitted to the rest of the cache if it has recently been requested more often than
+ * the least recently used tile it would replace.
+ * <p>The cache counts hits, misses, insertions and evictions, and how long its tiles
+ * took to load (see {@link #getStats()}).
  *
  * @author Jan Peter Stotz
  * @author Joel Kozikowski
@@ -26,13 +40,53 @@ public class MemoryTileCache implements ITileCache {
      */
     protected int cacheSize;
 
-    protected final Map<String, CacheEntry> hash;
+    /**
+     * The maximum number of bytes the images of the cached tiles may use. Zero for no limit.
+     */
+    protected long maxBytes;
+
+    /**
+     * The number of bytes the images of the cached tiles were using when last weighed
+     */
+    protected long bytesHeld;
+
+    /**
+     * The cached tiles, keyed by their packed tile key (see {@link TileKey})
+     */
+    protected final LongKeyMap<CacheEntry> hash;
 
     /**
      * List of all tiles in their last recently used order
      */
     protected final CacheLinkedListElement lruTiles;
 
+    /**
+     * List of the tiles in the admission window in their last recently used order. Only
+     * used when the admission filter is on.
+     */
+    protected final CacheLinkedListElement windowTiles;
+
+    /**
+     * Estimates how often each tile has been requested. Null if the admission filter is off.
+     */
+    protected FrequencySketch admissionSketch;
+
+    /**
+     * The percentage of the cache size used for the admission window
+     */
+    protected int windowPercent = 25;
+
+    protected long admissionRejections;
+
+    // Statistics, see getStats()
+    protected long hitCount;
+    protected long missCount;
+    protected long insertCount;
+    protected long evictionCount;
+    protected long loadCount;
+    protected long totalLoadNanos;
+    protected long maxLoadNanos;
+
     /**
      * Constructs a new {@code MemoryTileCache}.
      */
@@ -45,40 +99,162 @@ public class MemoryTileCache implements ITileCache {
      * @param cacheSize size of the cache
      */
     public MemoryTileCache(int cacheSize) {
+        this(cacheSize, 0);
+    }
+
+    /**
+     * Constructs a new {@code MemoryTileCache} limited by both a tile count and a byte budget.
+     * @param cacheSize maximum number of tiles in the cache
+     * @param maxBytes maximum number of bytes the images of the cached tiles may use (zero for no limit)
+     */
+    public MemoryTileCache(int cacheSize, long maxBytes) {
+        this(cacheSize, maxBytes, true);
+    }
+
+    /**
+     * Constructs a new {@code MemoryTileCache} that only listens for its tiles finishing
+     * their loads (or being decoded) if listen is TRUE. A cache that does not listen must
+     * be handed those tiles via {@link #onTileLoaded(Tile)} and {@link #onTileDecoded(Tile)}
+     * (e.g. by a {@link StripedTileCache}).
+     */
+    MemoryTileCache(int cacheSize, long maxBytes, boolean listen) {
         this.cacheSize = cacheSize;
-        hash = new HashMap<>(cacheSize);
+        this.maxBytes = maxBytes;
+        hash = new LongKeyMap<>(cacheSize);
         lruTiles = new CacheLinkedListElement();
+        windowTiles = new CacheLinkedListElement();
+        if (listen) {
+            Tile.broker.subscribe(Tile.TOPIC_LOADED, loadListener);
+            Tile.broker.subscribe(Tile.TOPIC_DECODED, decodeListener);
+        }
+    }
+
+    /**
+     * Re-weighs tiles in this cache as they finish loading. Held here since
+     * the broker only holds a weak reference to it.
+     */
+    private final Tile.TileTopicListener loadListener = (topic, tile) -> onTileLoaded(tile);
+
+    /**
+     * Re-weighs tiles in this cache as their deferred images are decoded.
+     */
+    private final Tile.TileTopicListener decodeListener = (topic, tile) -> onTileDecoded(tile);
+
+    /**
+     * Counts the load of the specified tile and re-weighs it, if it is in this cache. Tiles
+     * finished without a loading attempt (e.g. tiles known to be missing) are not counted.
+     */
+    synchronized void onTileLoaded(Tile tile) {
+        CacheEntry entry = hash.get(tile.getKey());
+        if (entry != null && entry.tile == tile) {
+            if (tile.isLoadAttempted()) {
+                long loadNanos = tile.getLoadTimeNanos();
+                loadCount++;
+                totalLoadNanos += loadNanos;
+                maxLoadNanos = Math.max(maxLoadNanos, loadNanos);
+            }
+            if (reweigh(entry)) {
+                removeOldEntries();
+            }
+        }
+    }
+
+    /**
+     * Re-weighs the specified tile, if it is in this cache, since decoding its image
+     * has changed how much memory it uses.
+     */
+    synchronized void onTileDecoded(Tile tile) {
+        CacheEntry entry = hash.get(tile.getKey());
+        if (entry != null && entry.tile == tile && reweigh(entry)) {
+            removeOldEntries();
+        }
     }
 
     @Override
     public synchronized void addTile(Tile tile) {
+        insertCount++;
+        putTile(tile, admissionSketch != null);
+    }
+
+    /**
+     * Places a tile in the cache without counting it as an insert.
+     * @param admit TRUE to place the tile in the admission window, where it must earn its
+     *   place in the rest of the cache. FALSE to place it straight at the head of the LRU list.
+     */
+    protected synchronized void putTile(Tile tile, boolean admit) {
         CacheEntry entry = createCacheEntry(tile);
-        if (hash.put(tile.getCacheKey(), entry) == null) {
-            // only if hash hadn't had the element, add it to LRU
+        CacheEntry oldEntry = hash.put(tile.getKey(), entry);
+        if (oldEntry != null) {
+            listOf(oldEntry).removeEntry(oldEntry);
+            bytesHeld -= oldEntry.bytes;
+        }
+        if (admit) {
+            entry.inWindow = true;
+            windowTiles.addFirst(entry);
+        }
+        else {
             lruTiles.addFirst(entry);
-            if (hash.size() > cacheSize || lruTiles.getElementCount() > cacheSize) {
-                removeOldEntries();
-            }
+        }
+        reweigh(entry);
+        if (admit) {
+            admitFromWindow();
+        }
+        if (hash.size() > cacheSize || getElementCount() > cacheSize || overBudget()) {
+            removeOldEntries();
         }
     }
 
     @Override
-    public synchronized Tile getTile(String sourceId, TCoordinate coord) {
-        CacheEntry entry = hash.get(Tile.getCacheKey(sourceId, coord));
-        if (entry == null)
+    public Tile getTile(String sourceId, TCoordinate coord) {
+        return getTile(TileKey.of(sourceId, coord));
+    }
+
+    /**
+     * Retrieves the tile with the specified tile key if present, otherwise <code>null</code>
+     * will be returned.
+     */
+    public synchronized Tile getTile(long key) {
+        if (admissionSketch != null) {
+            admissionSketch.increment(key);
+        }
+        CacheEntry entry = hash.get(key);
+        if (entry == null) {
+            missCount++;
             return null;
-        lruTiles.moveElementToFirstPos(entry);
+        }
+        hitCount++;
+        listOf(entry).moveElementToFirstPos(entry);
+        if (reweigh(entry)) {
+            removeOldEntries();
+        }
         return entry.tile;
     }
 
+    @Override
+    public Tile peekTile(String sourceId, TCoordinate coord) {
+        return peekTile(TileKey.of(sourceId, coord));
+    }
+
+    /**
+     * Retrieves the tile with the specified tile key if present without counting it as
+     * a use of the tile, otherwise <code>null</code> will be returned.
+     */
+    public synchronized Tile peekTile(long key) {
+        CacheEntry entry = hash.get(key);
+        return entry != null ? entry.tile : null;
+    }
+
     
     /**
-     * Removes the least recently used tiles
+     * Removes the least recently used tiles until both the tile count and the byte
+     * budget are satisfied. The most recently used tile is never removed for the 
+     * sake of the byte budget alone.
      */
     protected synchronized void removeOldEntries() {
         try {
-            while (lruTiles.getElementCount() > cacheSize) {
-                removeEntry(lruTiles.getLastElement());
+            while (getElementCount() > cacheSize || (overBudget() && getElementCount() > 1)) {
+                CacheEntry last = lruTiles.getLastElement();
+                removeEntry(last != null ? last : windowTiles.getLastElement());
             }
         } catch (NullPointerException e) {
             log.warning(e.getMessage());
@@ -86,8 +262,61 @@ public class MemoryTileCache implements ITileCache {
     }
 
     protected synchronized void removeEntry(CacheEntry entry) {
-        hash.remove(entry.tile.getCacheKey());
-        lruTiles.removeEntry(entry);
+        evictionCount++;
+        hash.remove(entry.tile.getKey());
+        listOf(entry).removeEntry(entry);
+        bytesHeld -= entry.bytes;
+    }
+
+    /**
+     * Updates the number of bytes recorded for the specified entry, returning
+     * TRUE if the cache is now over its byte budget.
+     */
+    protected boolean reweigh(CacheEntry entry) {
+        long bytes = entry.tile.getImageBytes();
+        bytesHeld += bytes - entry.bytes;
+        entry.bytes = bytes;
+        return overBudget();
+    }
+
+    /**
+     * Moves tiles that have fallen out of the admission window into the rest of the
+     * cache. If the cache is full, either the tile leaving the window or the least
+     * recently used tile of the cache is removed, whichever has been requested less often
+     * (ties favor the tile leaving the window).
+     */
+    protected void admitFromWindow() {
+        int windowSize = Math.max(1, cacheSize * windowPercent / 100);
+        while (windowTiles.getElementCount() > windowSize) {
+            CacheEntry candidate = windowTiles.getLastElement();
+            if (getElementCount() > cacheSize || overBudget()) {
+                CacheEntry victim = lruTiles.getLastElement();
+                if (victim != null &&
+                    admissionSketch.frequency(candidate.tile.getKey()) < admissionSketch.frequency(victim.tile.getKey())) {
+                    admissionRejections++;
+                    removeEntry(candidate);
+                    continue;
+                }
+                if (victim != null) {
+                    removeEntry(victim);
+                }
+            }
+            windowTiles.removeEntry(candidate);
+            candidate.inWindow = false;
+            lruTiles.addFirst(candidate);
+        }
+    }
+
+    private CacheLinkedListElement listOf(CacheEntry entry) {
+        return entry.inWindow ? windowTiles : lruTiles;
+    }
+
+    private int getElementCount() {
+        return lruTiles.getElementCount() + windowTiles.getElementCount();
+    }
+
+    private boolean overBudget() {
+        return maxBytes > 0 && bytesHeld > maxBytes;
     }
 
     protected CacheEntry createCacheEntry(Tile tile) {
@@ -98,6 +327,28 @@ public class MemoryTileCache implements ITileCache {
     public synchronized void clear() {
         hash.clear();
         lruTiles.clear();
+        windowTiles.clear();
+        bytesHeld = 0;
+    }
+
+    @Override
+    public synchronized TileCacheStats getStats() {
+        return new TileCacheStats(hitCount, missCount, insertCount, evictionCount,
+                                  loadCount, totalLoadNanos, maxLoadNanos,
+                                  hash.size(), cacheSize, bytesHeld);
+    }
+
+    @Override
+    public synchronized List<Tile> getRecentTiles(int maxTiles) {
+        List<Tile> tiles = new ArrayList<>(Math.min(maxTiles, hash.size()));
+        // Tiles in the admission window are the most recently added...
+        for (CacheEntry entry = windowTiles.getFirstElement(); entry != null && tiles.size() < maxTiles; entry = entry.next) {
+            tiles.add(entry.tile);
+        }
+        for (CacheEntry entry = lruTiles.getFirstElement(); entry != null && tiles.size() < maxTiles; entry = entry.next) {
+            tiles.add(entry.tile);
+        }
+        return tiles;
     }
 
     @Override
@@ -122,12 +373,90 @@ public class MemoryTileCache implements ITileCache {
             removeOldEntries();
     }
 
+    /**
+     * Turns the "W-TinyLFU" admission filter on or off. Turning it on starts
+     * with no history of how often tiles have been requested.
+     */
+    public synchronized void setAdmissionFilter(boolean enabled) {
+        if (!enabled) {
+            admissionSketch = null;
+            // The window holds the most recently used tiles, so they go to the front
+            CacheEntry entry;
+            while ((entry = windowTiles.getLastElement()) != null) {
+                windowTiles.removeEntry(entry);
+                entry.inWindow = false;
+                lruTiles.addFirst(entry);
+            }
+        }
+        else if (admissionSketch == null) {
+            admissionSketch = new FrequencySketch(cacheSize);
+        }
+    }
+
+    public synchronized boolean isAdmissionFilter() {
+        return admissionSketch != null;
+    }
+
+    /**
+     * Returns the percentage of the cache size used for the admission window
+     */
+    public synchronized int getAdmissionWindowPercent() {
+        return windowPercent;
+    }
+
+    /**
+     * Changes the percentage of the cache size used for the admission window. Larger
+     * windows favor recently used tiles, smaller ones frequently used tiles. The window
+     * should at least hold the tiles of one screen.
+     */
+    public synchronized void setAdmissionWindowPercent(int windowPercent) {
+        this.windowPercent = Math.max(0, Math.min(100, windowPercent));
+    }
+
+    /**
+     * Returns the number of tiles the admission filter has kept out of the cache.
+     */
+    public synchronized long getAdmissionRejections() {
+        return admissionRejections;
+    }
+
+    /**
+     * Returns the maximum number of bytes the images of the cached tiles may use, or
+     * zero if the cache is only limited by its tile count.
+     */
+    @Override
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Changes the maximum number of bytes the images of the cached tiles may use.
+     *
+     * @param maxBytes
+     *            new byte budget, or zero for no limit
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        if (overBudget())
+            removeOldEntries();
+    }
+
+    /**
+     * Returns the number of bytes the images of the cached tiles were using
+     * when they were last weighed.
+     */
+    public synchronized long getBytesHeld() {
+        return bytesHeld;
+    }
+
     /**
      * Linked list element holding the {@link Tile} and links to the
      * {@link #next} and {@link #prev} item in the list.
      */
     protected static class CacheEntry {
         private Tile tile;
+        private long bytes;
+        private boolean inWindow;
         private CacheEntry next;
         private CacheEntry prev;
 
@@ -135,6 +464,10 @@ public class MemoryTileCache implements ITileCache {
             this.tile = tile;
         }
 
+        protected Tile getTile() {
+            return tile;
+        }
+
         @Override
         public String toString() {
             return tile.toString();
@@ -230,9 +563,12 @@ public class MemoryTileCache implements ITileCache {
     }
 
     
+    /**
+     * Makes a placeholder out of cached tiles of the zoom levels above
+     * or below the specified tile (see {@link TilePlaceholders}).
+     */
     @Override
     public BufferedImage getPlaceholder(String sourceId, TCoordinate coord) {
-        // TODO Generate a placeholder image for the specified coordinate if possible
-        return null;
+        return TilePlaceholders.create(this, sourceId, coord);
     }
 }
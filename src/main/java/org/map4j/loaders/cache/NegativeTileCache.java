@@ -0,0 +1,168 @@
+package org.map4j.loaders.cache;
+
+/**
+ * A bounded set of the packed keys (see {@link org.map4j.loaders.TileKey}) of tiles that
+ * are known not to exist in their tile source, so they can be answered "no tile here"
+ * without queuing a load job. Sparse tile sets (e.g. charts that only cover a coast line)
+ * are mostly holes, and without this every hole is looked up again each time it scrolls
+ * back into view.
+ * <p>When the set is full, the keys added longest ago are forgotten first. Entries can
+ * optionally expire, for tile sources (e.g. online services) where a missing tile may
+ * appear later.
+ *
+ * @author Joel Kozikowski
+ */
+public class NegativeTileCache {
+    
+    /**
+     * A remembered key, linked to the keys remembered just before and after it
+     */
+    private static final class Entry {
+        final long key;
+        long expires;
+        Entry older;
+        Entry newer;
+    
+        Entry(long key, long expires) {
+            this.key = key;
+            this.expires = expires;
+        }
+    }
+    
+    private final LongKeyMap<Entry> entries;
+    private final int maxEntries;
+    private Entry oldest;
+    private Entry newest;
+    private long timeToLive;
+    private long hits;
+    
+    
+    /**
+     * Constructs a cache whose entries never expire.
+     * @param maxEntries the maximum number of missing tiles to remember
+     */
+    public NegativeTileCache(int maxEntries) {
+        this(maxEntries, 0);
+    }
+    
+    
+    /**
+     * @param maxEntries the maximum number of missing tiles to remember
+     * @param timeToLive the number of milliseconds a tile is remembered as missing,
+     *   or zero to remember it until it is pushed out by newer entries
+     */
+    public NegativeTileCache(int maxEntries, long timeToLive) {
+        this.entries = new LongKeyMap<>(maxEntries);
+        this.maxEntries = Math.max(1, maxEntries);
+        this.timeToLive = timeToLive;
+    }
+    
+    
+    /**
+     * Returns TRUE if the tile with the specified key is known not to exist.
+     */
+    public synchronized boolean isMissing(long key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return false;
+        }
+        if (entry.expires != 0 && entry.expires < System.currentTimeMillis()) {
+            remove(entry);
+            return false;
+        }
+        hits++;
+        return true;
+    }
+    
+    
+    /**
+     * Remembers that the tile with the specified key does not exist.
+     */
+    public synchronized void markMissing(long key) {
+        long expires = timeToLive > 0 ? System.currentTimeMillis() + timeToLive : 0;
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            entry.expires = expires;
+            return;
+        }
+        
+        if (entries.size() >= maxEntries) {
+            remove(oldest);
+        }
+        entry = new Entry(key, expires);
+        entries.put(key, entry);
+        entry.older = newest;
+        if (newest != null) {
+            newest.newer = entry;
+        }
+        else {
+            oldest = entry;
+        }
+        newest = entry;
+    }
+    
+    
+    /**
+     * Forgets that the tile with the specified key is missing (e.g. because it has
+     * been added to its tile source).
+     */
+    public synchronized void remove(long key) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            remove(entry);
+        }
+    }
+    
+    
+    /**
+     * Forgets the specified entry, and takes it out of the insertion order
+     */
+    private void remove(Entry entry) {
+        entries.remove(entry.key);
+        if (entry.older != null) {
+            entry.older.newer = entry.newer;
+        }
+        else {
+            oldest = entry.newer;
+        }
+        if (entry.newer != null) {
+            entry.newer.older = entry.older;
+        }
+        else {
+            newest = entry.older;
+        }
+        entry.older = null;
+        entry.newer = null;
+    }
+    
+    
+    public synchronized int size() {
+        return entries.size();
+    }
+    
+    
+    /**
+     * Returns the number of lookups that found a tile to be missing.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+    
+    
+    public synchronized long getTimeToLive() {
+        return timeToLive;
+    }
+    
+    
+    public synchronized void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+    
+    
+    public synchronized void clear() {
+        entries.clear();
+        oldest = null;
+        newest = null;
+    }
+
+}
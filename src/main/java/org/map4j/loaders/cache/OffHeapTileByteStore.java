@@ -0,0 +1,257 @@
+package org.map4j.loaders.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An {@link ITileByteStore} that keeps encoded tile images outside of the Java heap, in
+ * direct ByteBuffer "slabs" that are divided into fixed size blocks. Each image occupies
+ * as many blocks as it needs, and freed blocks are kept on a free list for re-use. When
+ * the store is full, the least recently used images are discarded.
+ * <p>Only a small amount of bookkeeping (a few objects per image) is kept on the heap, so
+ * a large store adds little to the garbage collector's work. Pair it with a
+ * {@link TwoTierTileCache} whose decoded tier is about the size of the displayed tile grid
+ * to keep as little tile data on the heap as possible.
+ *
+ * @author Joel Kozikowski
+ */
+public class OffHeapTileByteStore implements ITileByteStore {
+    
+    public static final int DEFAULT_BLOCK_SIZE = 4 * 1024;
+    public static final int DEFAULT_SLAB_SIZE = 4 * 1024 * 1024;
+    
+    /**
+     * The bookkeeping of one stored image, linked in least recently used order
+     */
+    private static final class Entry {
+        final long key;
+        final int length;
+        final int[] blocks;
+        Entry prev;
+        Entry next;
+        
+        Entry(long key, int length, int[] blocks) {
+            this.key = key;
+            this.length = length;
+            this.blocks = blocks;
+        }
+    }
+    
+    private final int blockSize;
+    private final int blocksPerSlab;
+    private final int maxBlocks;
+    private int allocatedBlocks;
+    private final List<ByteBuffer> slabs = new ArrayList<>();
+    
+    private int[] freeBlocks;
+    private int freeCount;
+    
+    private final LongKeyMap<Entry> entries = new LongKeyMap<>(1024);
+    private Entry head;
+    private Entry tail;
+    private long bytesHeld;
+    
+    
+    /**
+     * Constructs a store of the specified capacity using the default block and slab sizes.
+     * @param maxBytes the maximum number of bytes of off-heap memory to use
+     */
+    public OffHeapTileByteStore(long maxBytes) {
+        this(maxBytes, DEFAULT_BLOCK_SIZE, DEFAULT_SLAB_SIZE);
+    }
+    
+    
+    /**
+     * @param maxBytes the maximum number of bytes of off-heap memory to use
+     * @param blockSize the size of the blocks images are stored in. Smaller blocks waste
+     *   less space at the end of each image, but need more bookkeeping.
+     * @param slabSize the size of each direct buffer allocated. Slabs are allocated as
+     *   they are needed, until maxBytes (rounded down to whole blocks) is reached. The last
+     *   slab is made smaller if need be, so no more than maxBytes is ever allocated.
+     */
+    public OffHeapTileByteStore(long maxBytes, int blockSize, int slabSize) {
+        this.blockSize = blockSize;
+        this.maxBlocks = (int) Math.min(Integer.MAX_VALUE, maxBytes / blockSize);
+        this.blocksPerSlab = Math.max(1, Math.min(slabSize / blockSize, maxBlocks));
+        this.freeBlocks = new int[blocksPerSlab];
+        this.freeCount = 0;
+    }
+    
+    
+    @Override
+    public synchronized byte[] get(long key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        moveToHead(entry);
+        
+        byte[] bytes = new byte[entry.length];
+        int offset = 0;
+        for (int block : entry.blocks) {
+            int len = Math.min(blockSize, entry.length - offset);
+            ByteBuffer slab = slabs.get(block / blocksPerSlab);
+            slab.position((block % blocksPerSlab) * blockSize);
+            slab.get(bytes, offset, len);
+            offset += len;
+        }
+        return bytes;
+    }
+    
+    
+    @Override
+    public synchronized void put(long key, byte[] bytes) {
+        remove(key);
+        
+        int needed = (bytes.length + blockSize - 1) / blockSize;
+        if (needed > maxBlocks) {
+            // Larger than the entire store
+            return;
+        }
+        while (freeCount < needed) {
+            if (allocatedBlocks < maxBlocks) {
+                addSlab();
+            }
+            else {
+                removeEntry(tail);
+            }
+        }
+        
+        int[] blocks = new int[needed];
+        int offset = 0;
+        for (int i = 0; i < needed; i++) {
+            int block = freeBlocks[--freeCount];
+            int len = Math.min(blockSize, bytes.length - offset);
+            ByteBuffer slab = slabs.get(block / blocksPerSlab);
+            slab.position((block % blocksPerSlab) * blockSize);
+            slab.put(bytes, offset, len);
+            offset += len;
+            blocks[i] = block;
+        }
+        
+        Entry entry = new Entry(key, bytes.length, blocks);
+        entries.put(key, entry);
+        addToHead(entry);
+        bytesHeld += bytes.length;
+    }
+    
+    
+    @Override
+    public synchronized void remove(long key) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            removeEntry(entry);
+        }
+    }
+    
+    
+    private void addSlab() {
+        int firstBlock = allocatedBlocks;
+        int slabBlocks = Math.min(blocksPerSlab, maxBlocks - allocatedBlocks);
+        slabs.add(ByteBuffer.allocateDirect(slabBlocks * blockSize));
+        allocatedBlocks += slabBlocks;
+        // The free list must be able to hold every block there is...
+        if (freeBlocks.length < allocatedBlocks) {
+            int[] newFree = new int[allocatedBlocks];
+            System.arraycopy(freeBlocks, 0, newFree, 0, freeCount);
+            freeBlocks = newFree;
+        }
+        // Push in reverse so the lowest numbered blocks are used first
+        for (int block = allocatedBlocks - 1; block >= firstBlock; block--) {
+            freeBlocks[freeCount++] = block;
+        }
+    }
+    
+    
+    private void removeEntry(Entry entry) {
+        entries.remove(entry.key);
+        unlink(entry);
+        bytesHeld -= entry.length;
+        for (int block : entry.blocks) {
+            freeBlocks[freeCount++] = block;
+        }
+    }
+    
+    
+    private void addToHead(Entry entry) {
+        entry.prev = null;
+        entry.next = head;
+        if (head != null) {
+            head.prev = entry;
+        }
+        head = entry;
+        if (tail == null) {
+            tail = entry;
+        }
+    }
+    
+    
+    private void unlink(Entry entry) {
+        if (entry.prev != null) {
+            entry.prev.next = entry.next;
+        }
+        else {
+            head = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.prev = entry.prev;
+        }
+        else {
+            tail = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+    }
+    
+    
+    private void moveToHead(Entry entry) {
+        if (head != entry) {
+            unlink(entry);
+            addToHead(entry);
+        }
+    }
+    
+    
+    @Override
+    public synchronized int getCount() {
+        return entries.size();
+    }
+    
+    
+    /**
+     * Returns the number of bytes of encoded images held by the store. The off-heap
+     * memory used is somewhat higher, since the last block of each image is usually
+     * only partially used.
+     */
+    @Override
+    public synchronized long getBytesHeld() {
+        return bytesHeld;
+    }
+    
+    
+    /**
+     * Returns the number of bytes of off-heap memory allocated so far.
+     */
+    public synchronized long getBytesAllocated() {
+        return (long) allocatedBlocks * blockSize;
+    }
+    
+    
+    /**
+     * Removes all images from the store. The off-heap memory already
+     * allocated is kept for re-use.
+     */
+    @Override
+    public synchronized void clear() {
+        entries.clear();
+        head = null;
+        tail = null;
+        bytesHeld = 0;
+        freeCount = 0;
+        for (int block = allocatedBlocks - 1; block >= 0; block--) {
+            freeBlocks[freeCount++] = block;
+        }
+    }
+
+}
@@ -0,0 +1,249 @@
+package org.map4j.loaders.cache;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.map4j.coordinates.TCoordinate;
+import org.map4j.loaders.Tile;
+import org.map4j.loaders.TileKey;
+
+/**
+ * {@link ITileCache} implementation that splits the cache into a number of independent
+ * {@link MemoryTileCache} segments, each with its own lock. A tile is always stored in the
+ * same segment (chosen by its cache key), so threads looking up different tiles rarely
+ * wait on one another.
+ * <p>Each segment keeps its own LRU list and its share of the tile count and byte budget,
+ * so the tiles evicted are only approximately the least recently used tiles of the
+ * cache as a whole. To keep hash skew from evicting tiles while the cache as a whole
+ * has room, there are never so many segments that one holds fewer than
+ * {@link #MIN_SEGMENT_SIZE} tiles.
+ * <p>The cache listens for tiles finishing their loads (or being decoded) once, and
+ * hands each tile to its own segment, so a loader thread only ever takes one
+ * segment's lock per tile.
+ *
+ * @author Joel Kozikowski
+ */
+public class StripedTileCache implements ITileCache {
+    
+    /**
+     * The smallest number of tiles a segment is made to hold, unless the cache as
+     * a whole holds fewer
+     */
+    public static final int MIN_SEGMENT_SIZE = 32;
+    
+    private final MemoryTileCache[] segments;
+    private final int segmentMask;
+    private final int cacheSize;
+    
+    
+    /**
+     * Constructs a new {@code StripedTileCache} holding up to 200 tiles.
+     */
+    public StripedTileCache() {
+        this(200);
+    }
+    
+    
+    /**
+     * Constructs a new {@code StripedTileCache} with a segment count based on the
+     * number of processors available.
+     * @param cacheSize maximum number of tiles in the cache
+     */
+    public StripedTileCache(int cacheSize) {
+        this(cacheSize, 0, Runtime.getRuntime().availableProcessors() * 2);
+    }
+    
+    
+    /**
+     * Constructs a new {@code StripedTileCache}.
+     * @param cacheSize maximum number of tiles in the cache
+     * @param maxBytes maximum number of bytes the images of the cached tiles may use (zero for no limit)
+     * @param segmentCount the number of segments to split the cache into. This is rounded
+     *   up to a power of two, then reduced (by powers of two) until each segment holds at
+     *   least MIN_SEGMENT_SIZE tiles.
+     */
+    public StripedTileCache(int cacheSize, long maxBytes, int segmentCount) {
+        int count = 1;
+        while (count < segmentCount) {
+            count <<= 1;
+        }
+        while (count > 1 && cacheSize / count < MIN_SEGMENT_SIZE) {
+            count >>= 1;
+        }
+        
+        this.cacheSize = cacheSize;
+        this.segmentMask = count - 1;
+        this.segments = new MemoryTileCache[count];
+        for (int i = 0; i < count; i++) {
+            // Any remainder is spread over the first segments, so the segments add up to the whole...
+            int segmentSize = cacheSize / count + (i < cacheSize % count ? 1 : 0);
+            long segmentBytes = maxBytes / count + (i < maxBytes % count ? 1 : 0);
+            segments[i] = new MemoryTileCache(Math.max(1, segmentSize), segmentBytes, false);
+        }
+        Tile.broker.subscribe(Tile.TOPIC_LOADED, loadListener);
+        Tile.broker.subscribe(Tile.TOPIC_DECODED, decodeListener);
+    }
+    
+    
+    /**
+     * Hands tiles that finish loading to their segment. Held here since
+     * the broker only holds a weak reference to it.
+     */
+    private final Tile.TileTopicListener loadListener = (topic, tile) -> segmentFor(tile.getKey()).onTileLoaded(tile);
+    
+    /**
+     * Hands tiles whose deferred images have been decoded to their segment.
+     */
+    private final Tile.TileTopicListener decodeListener = (topic, tile) -> segmentFor(tile.getKey()).onTileDecoded(tile);
+    
+    
+    private MemoryTileCache segmentFor(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return segments[(int) (key >>> 32) & segmentMask];
+    }
+    
+    
+    @Override
+    public Tile getTile(String sourceId, TCoordinate coord) {
+        long key = TileKey.of(sourceId, coord);
+        return segmentFor(key).getTile(key);
+    }
+    
+    
+    @Override
+    public Tile peekTile(String sourceId, TCoordinate coord) {
+        long key = TileKey.of(sourceId, coord);
+        return segmentFor(key).peekTile(key);
+    }
+    
+    
+    @Override
+    public void addTile(Tile tile) {
+        segmentFor(tile.getKey()).addTile(tile);
+    }
+    
+    
+    @Override
+    public int getTileCount() {
+        int count = 0;
+        for (MemoryTileCache segment : segments) {
+            count += segment.getTileCount();
+        }
+        return count;
+    }
+    
+    
+    @Override
+    public void clear() {
+        for (MemoryTileCache segment : segments) {
+            segment.clear();
+        }
+    }
+    
+    
+    @Override
+    public int getCacheSize() {
+        return cacheSize;
+    }
+    
+    
+    /**
+     * Returns the combined byte budget of all segments, or zero if the
+     * cache is only limited by its tile count.
+     */
+    @Override
+    public long getMaxBytes() {
+        long bytes = 0;
+        for (MemoryTileCache segment : segments) {
+            bytes += segment.getMaxBytes();
+        }
+        return bytes;
+    }
+    
+    
+    /**
+     * Returns the number of bytes the images of the cached tiles were using
+     * when they were last weighed.
+     */
+    public long getBytesHeld() {
+        long bytes = 0;
+        for (MemoryTileCache segment : segments) {
+            bytes += segment.getBytesHeld();
+        }
+        return bytes;
+    }
+    
+    
+    /**
+     * Returns the combined statistics of all segments
+     */
+    @Override
+    public TileCacheStats getStats() {
+        TileCacheStats stats = segments[0].getStats();
+        for (int i = 1; i < segments.length; i++) {
+            stats = stats.plus(segments[i].getStats());
+        }
+        return stats;
+    }
+    
+    
+    /**
+     * Returns up to maxTiles of the most recently used tiles, taking them from
+     * each segment in turn. Since each segment has its own LRU order, the order
+     * is only approximate.
+     */
+    @Override
+    public List<Tile> getRecentTiles(int maxTiles) {
+        List<List<Tile>> recent = new ArrayList<>(segments.length);
+        for (MemoryTileCache segment : segments) {
+            recent.add(segment.getRecentTiles(maxTiles));
+        }
+        
+        List<Tile> tiles = new ArrayList<>();
+        for (int i = 0; tiles.size() < maxTiles; i++) {
+            boolean added = false;
+            for (List<Tile> segmentTiles : recent) {
+                if (i < segmentTiles.size() && tiles.size() < maxTiles) {
+                    tiles.add(segmentTiles.get(i));
+                    added = true;
+                }
+            }
+            if (!added) {
+                break;
+            }
+        }
+        return tiles;
+    }
+    
+    
+    /**
+     * Turns the "W-TinyLFU" admission filter of every segment on or off.
+     * @see MemoryTileCache#setAdmissionFilter(boolean)
+     */
+    public void setAdmissionFilter(boolean enabled) {
+        for (MemoryTileCache segment : segments) {
+            segment.setAdmissionFilter(enabled);
+        }
+    }
+    
+    
+    /**
+     * Returns the number of segments the cache is split into.
+     */
+    public int getSegmentCount() {
+        return segments.length;
+    }
+    
+    
+    /**
+     * Makes a placeholder out of cached tiles of the zoom levels above or below the
+     * specified tile. Those are usually in other segments, so this cache as a whole
+     * is searched rather than the tile's own segment.
+     */
+    @Override
+    public BufferedImage getPlaceholder(String sourceId, TCoordinate coord) {
+        return TilePlaceholders.create(this, sourceId, coord);
+    }
+
+}
@@ -0,0 +1,124 @@
+package org.map4j.loaders.cache;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Exposes the statistics of a tile cache through JMX (e.g. to JConsole or VisualVM)
+ * under the name "org.map4j:type=TileCache,name=&lt;name&gt;". Each attribute read
+ * takes a fresh snapshot of the cache's statistics.
+ *
+ * @author Joel Kozikowski
+ */
+public class TileCacheMonitor implements TileCacheStatsMXBean {
+    
+    private final ITileCache cache;
+    
+    
+    public TileCacheMonitor(ITileCache cache) {
+        this.cache = cache;
+    }
+    
+    
+    /**
+     * Registers the statistics of the specified cache with the platform MBean server,
+     * replacing any cache already registered under the same name.
+     * @return the name the cache was registered under
+     */
+    public static ObjectName register(String name, ITileCache cache) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = getObjectName(name);
+        if (server.isRegistered(objectName)) {
+            server.unregisterMBean(objectName);
+        }
+        server.registerMBean(new TileCacheMonitor(cache), objectName);
+        return objectName;
+    }
+    
+    
+    /**
+     * Removes the cache registered under the specified name (if any) from the platform MBean server.
+     */
+    public static void unregister(String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = getObjectName(name);
+        if (server.isRegistered(objectName)) {
+            server.unregisterMBean(objectName);
+        }
+    }
+    
+    
+    public static ObjectName getObjectName(String name) throws JMException {
+        return new ObjectName("org.map4j:type=TileCache,name=" + ObjectName.quote(name));
+    }
+    
+    
+    @Override
+    public long getHitCount() {
+        return cache.getStats().getHitCount();
+    }
+    
+    
+    @Override
+    public long getMissCount() {
+        return cache.getStats().getMissCount();
+    }
+    
+    
+    @Override
+    public double getHitRate() {
+        return cache.getStats().getHitRate();
+    }
+    
+    
+    @Override
+    public long getInsertCount() {
+        return cache.getStats().getInsertCount();
+    }
+    
+    
+    @Override
+    public long getEvictionCount() {
+        return cache.getStats().getEvictionCount();
+    }
+    
+    
+    @Override
+    public long getLoadCount() {
+        return cache.getStats().getLoadCount();
+    }
+    
+    
+    @Override
+    public double getAverageLoadMillis() {
+        return cache.getStats().getAverageLoadMillis();
+    }
+    
+    
+    @Override
+    public double getMaxLoadMillis() {
+        return cache.getStats().getMaxLoadMillis();
+    }
+    
+    
+    @Override
+    public int getTileCount() {
+        return cache.getStats().getTileCount();
+    }
+    
+    
+    @Override
+    public int getCacheSize() {
+        return cache.getStats().getCacheSize();
+    }
+    
+    
+    @Override
+    public long getBytesHeld() {
+        return cache.getStats().getBytesHeld();
+    }
+
+}
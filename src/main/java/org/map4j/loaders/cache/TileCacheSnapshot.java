@@ -0,0 +1,189 @@
+package org.map4j.loaders.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.map4j.coordinates.MapProjections;
+import org.map4j.coordinates.TCoordinate;
+import org.map4j.loaders.Tile;
+
+/**
+ * A compact list of the most recently used tiles of a tile cache (hottest first) that can
+ * be saved to a file on shutdown and loaded again on startup to warm the cache back up
+ * (see TileLoaderController.restoreCacheSnapshot()). Each entry holds the tile's source
+ * and location (including its tile size, so the tile's coordinate can be projected
+ * again), and optionally its encoded (PNG or JPEG) image so it can be restored
+ * without going back to the tile loader.
+ * <p>Tile keys are not saved as-is since the source indexes they contain (see TileKey) are
+ * only assigned for the life of the process. Source ids are saved once each instead.
+ *
+ * @author Joel Kozikowski
+ */
+public class TileCacheSnapshot {
+    
+    private static final int MAGIC = 0x4d344a53; // "M4JS"
+    private static final int VERSION = 1;
+    
+    /**
+     * One tile of a snapshot
+     */
+    public static final class Entry {
+        public final String sourceId;
+        public final int zoom;
+        public final int col;
+        public final int rowXYZ;
+        public final int tileSize;
+        private final byte[] encodedImage;
+        
+        public Entry(String sourceId, int zoom, int col, int rowXYZ, int tileSize, byte[] encodedImage) {
+            this.sourceId = sourceId;
+            this.zoom = zoom;
+            this.col = col;
+            this.rowXYZ = rowXYZ;
+            this.tileSize = tileSize;
+            this.encodedImage = encodedImage;
+        }
+        
+        /**
+         * Returns the tile coordinate of this tile
+         */
+        public TCoordinate getCoordinate() {
+            MapProjections proj = (tileSize == MapProjections.DEFAUL_TILE_SIZE) ? MapProjections.Merc256 : new MapProjections(tileSize);
+            return new TCoordinate(col, rowXYZ, zoom, true, proj);
+        }
+        
+        /**
+         * Returns the encoded image of this tile, or null if it was not saved.
+         */
+        public byte[] getEncodedImage() {
+            return encodedImage;
+        }
+    }
+    
+    private final List<Entry> entries;
+    
+    
+    public TileCacheSnapshot(List<Entry> entries) {
+        this.entries = entries;
+    }
+    
+    
+    /**
+     * Takes a snapshot of the most recently used tiles of the specified cache.
+     * @param maxTiles the maximum number of tiles to include
+     * @param includeImages TRUE to include the encoded images of tiles that have them
+     */
+    public static TileCacheSnapshot of(ITileCache cache, int maxTiles, boolean includeImages) {
+        List<Entry> entries = new ArrayList<>();
+        for (Tile tile : cache.getRecentTiles(maxTiles)) {
+            if (tile.hasError()) {
+                continue;
+            }
+            byte[] image = (includeImages && tile.isLoaded()) ? tile.getEncodedImage() : null;
+            entries.add(new Entry(String.valueOf(tile.sourceId), tile.coord.getZoom(), tile.coord.getCol(), tile.coord.getRowAsXYZ(),
+                                  tile.coord.getTileSize(), image));
+        }
+        return new TileCacheSnapshot(entries);
+    }
+    
+    
+    /**
+     * Returns the tiles of this snapshot, hottest first.
+     */
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+    
+    
+    /**
+     * Writes this snapshot to the specified file. The snapshot is written to a temporary
+     * file first, so an existing snapshot is not lost if writing fails part way.
+     */
+    public void save(File file) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            Map<String, Integer> sources = new HashMap<>();
+            List<String> sourceList = new ArrayList<>();
+            for (Entry entry : entries) {
+                if (!sources.containsKey(entry.sourceId)) {
+                    sources.put(entry.sourceId, sourceList.size());
+                    sourceList.add(entry.sourceId);
+                }
+            }
+            
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(sourceList.size());
+            for (String sourceId : sourceList) {
+                out.writeUTF(sourceId);
+            }
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeShort(sources.get(entry.sourceId));
+                out.writeByte(entry.zoom);
+                out.writeInt(entry.col);
+                out.writeInt(entry.rowXYZ);
+                out.writeShort(entry.tileSize);
+                if (entry.encodedImage != null) {
+                    out.writeInt(entry.encodedImage.length);
+                    out.write(entry.encodedImage);
+                }
+                else {
+                    out.writeInt(-1);
+                }
+            }
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+    
+    
+    /**
+     * Reads a snapshot previously written by save().
+     */
+    public static TileCacheSnapshot load(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a tile cache snapshot");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException(file + " is a tile cache snapshot of an unknown version (" + version + ")");
+            }
+            String[] sources = new String[in.readInt()];
+            for (int i = 0; i < sources.length; i++) {
+                sources[i] = in.readUTF();
+            }
+            int count = in.readInt();
+            List<Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String sourceId = sources[in.readUnsignedShort()];
+                int zoom = in.readUnsignedByte();
+                int col = in.readInt();
+                int row = in.readInt();
+                int tileSize = in.readUnsignedShort();
+                int length = in.readInt();
+                byte[] image = null;
+                if (length >= 0) {
+                    image = new byte[length];
+                    in.readFully(image);
+                }
+                entries.add(new Entry(sourceId, zoom, col, row, tileSize, image));
+            }
+            return new TileCacheSnapshot(entries);
+        }
+    }
+
+}
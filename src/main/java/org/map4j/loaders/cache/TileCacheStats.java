@@ -0,0 +1,180 @@
+package org.map4j.loaders.cache;
+
+/**
+ * An immutable snapshot of the statistics of a tile cache (see {@link ITileCache#getStats()}).
+ * All counts are since the cache was created. Subtract two snapshots with {@link #minus(TileCacheStats)}
+ * to get the statistics of the time in between.
+ *
+ * @author Joel Kozikowski
+ */
+public final class TileCacheStats {
+    
+    private final long hitCount;
+    private final long missCount;
+    private final long insertCount;
+    private final long evictionCount;
+    private final long loadCount;
+    private final long totalLoadNanos;
+    private final long maxLoadNanos;
+    private final int tileCount;
+    private final int cacheSize;
+    private final long bytesHeld;
+    
+    
+    /**
+     * @param hitCount the number of lookups that found their tile
+     * @param missCount the number of lookups that did not find their tile
+     * @param insertCount the number of tiles added to the cache
+     * @param evictionCount the number of tiles removed to make room for others
+     * @param loadCount the number of cached tiles that have finished loading
+     * @param totalLoadNanos the total time those tiles took to load
+     * @param maxLoadNanos the longest time one of those tiles took to load
+     * @param tileCount the number of tiles currently cached
+     * @param cacheSize the maximum number of tiles the cache holds
+     * @param bytesHeld the number of bytes the images of the cached tiles use
+     */
+    public TileCacheStats(long hitCount, long missCount, long insertCount, long evictionCount,
+                          long loadCount, long totalLoadNanos, long maxLoadNanos,
+                          int tileCount, int cacheSize, long bytesHeld) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.insertCount = insertCount;
+        this.evictionCount = evictionCount;
+        this.loadCount = loadCount;
+        this.totalLoadNanos = totalLoadNanos;
+        this.maxLoadNanos = maxLoadNanos;
+        this.tileCount = tileCount;
+        this.cacheSize = cacheSize;
+        this.bytesHeld = bytesHeld;
+    }
+    
+    
+    /**
+     * Returns a snapshot of a cache that only reports its size.
+     */
+    public static TileCacheStats of(ITileCache cache) {
+        return new TileCacheStats(0, 0, 0, 0, 0, 0, 0, cache.getTileCount(), cache.getCacheSize(), 0);
+    }
+    
+    
+    public long getHitCount() {
+        return hitCount;
+    }
+    
+    
+    public long getMissCount() {
+        return missCount;
+    }
+    
+    
+    /**
+     * Returns the total number of lookups (hits and misses)
+     */
+    public long getRequestCount() {
+        return hitCount + missCount;
+    }
+    
+    
+    /**
+     * Returns the fraction of lookups that found their tile, or 1.0 if
+     * there have been no lookups.
+     */
+    public double getHitRate() {
+        long requests = getRequestCount();
+        return requests == 0 ? 1.0 : (double) hitCount / requests;
+    }
+    
+    
+    public long getInsertCount() {
+        return insertCount;
+    }
+    
+    
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+    
+    
+    /**
+     * Returns the number of cached tiles that have finished loading, i.e. the
+     * number of samples the load times are based on.
+     */
+    public long getLoadCount() {
+        return loadCount;
+    }
+    
+    
+    public long getTotalLoadNanos() {
+        return totalLoadNanos;
+    }
+    
+    
+    /**
+     * Returns the average time from a tile starting to load (usually right after
+     * a cache miss) until it could be returned as a loaded tile.
+     */
+    public double getAverageLoadMillis() {
+        return loadCount == 0 ? 0 : totalLoadNanos / 1e6 / loadCount;
+    }
+    
+    
+    public double getMaxLoadMillis() {
+        return maxLoadNanos / 1e6;
+    }
+    
+    
+    public long getMaxLoadNanos() {
+        return maxLoadNanos;
+    }
+    
+    
+    public int getTileCount() {
+        return tileCount;
+    }
+    
+    
+    public int getCacheSize() {
+        return cacheSize;
+    }
+    
+    
+    public long getBytesHeld() {
+        return bytesHeld;
+    }
+    
+    
+    /**
+     * Returns the combined statistics of this and another cache (e.g. the
+     * segments of a StripedTileCache).
+     */
+    public TileCacheStats plus(TileCacheStats other) {
+        return new TileCacheStats(hitCount + other.hitCount, missCount + other.missCount,
+                                  insertCount + other.insertCount, evictionCount + other.evictionCount,
+                                  loadCount + other.loadCount, totalLoadNanos + other.totalLoadNanos,
+                                  Math.max(maxLoadNanos, other.maxLoadNanos),
+                                  tileCount + other.tileCount, cacheSize + other.cacheSize,
+                                  bytesHeld + other.bytesHeld);
+    }
+    
+    
+    /**
+     * Returns the statistics of the time between an earlier snapshot and this one.
+     * The sizes and the maximum load time are those of this snapshot.
+     */
+    public TileCacheStats minus(TileCacheStats earlier) {
+        return new TileCacheStats(hitCount - earlier.hitCount, missCount - earlier.missCount,
+                                  insertCount - earlier.insertCount, evictionCount - earlier.evictionCount,
+                                  loadCount - earlier.loadCount, totalLoadNanos - earlier.totalLoadNanos,
+                                  maxLoadNanos, tileCount, cacheSize, bytesHeld);
+    }
+    
+    
+    @Override
+    public String toString() {
+        return String.format("TileCacheStats[hits=%d, misses=%d, hitRate=%.3f, inserts=%d, evictions=%d, " +
+                             "tiles=%d/%d, bytes=%d, avgLoad=%.1fms, maxLoad=%.1fms]",
+                             hitCount, missCount, getHitRate(), insertCount, evictionCount,
+                             tileCount, cacheSize, bytesHeld, getAverageLoadMillis(), getMaxLoadMillis());
+    }
+
+}
@@ -0,0 +1,33 @@
+package org.map4j.loaders.cache;
+
+/**
+ * The JMX management interface of a tile cache's statistics. See {@link TileCacheMonitor}
+ * for registering a cache with the platform MBean server.
+ *
+ * @author Joel Kozikowski
+ */
+public interface TileCacheStatsMXBean {
+    
+    long getHitCount();
+    
+    long getMissCount();
+    
+    double getHitRate();
+    
+    long getInsertCount();
+    
+    long getEvictionCount();
+    
+    long getLoadCount();
+    
+    double getAverageLoadMillis();
+    
+    double getMaxLoadMillis();
+    
+    int getTileCount();
+    
+    int getCacheSize();
+    
+    long getBytesHeld();
+
+}
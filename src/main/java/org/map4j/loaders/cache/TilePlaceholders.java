@@ -0,0 +1,125 @@
+package org.map4j.loaders.cache;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+
+import org.map4j.coordinates.TCoordinate;
+import org.map4j.loaders.Tile;
+import org.map4j.loaders.TileKey;
+import org.map4j.utils.TileDecoder;
+
+/**
+ * Makes placeholder images for tiles that are not loaded yet out of tiles of other zoom
+ * levels that are already in a cache. The four tiles one zoom level below are scaled
+ * down if they are all cached. Otherwise, the matching part of the nearest cached tile
+ * above is cropped and scaled up. Either way, the map looks about right (if blurry) the
+ * moment the zoom level changes, rather than showing a "loading" image. Cached tiles
+ * that have not been decoded yet are passed over, so no tile is decoded to make a placeholder.
+ *
+ * @author Joel Kozikowski
+ */
+public class TilePlaceholders {
+    
+    /**
+     * The number of zoom levels above a tile that are searched for a cached tile. At four
+     * levels up, a 16x16 pixel part of a 256 pixel tile is scaled up.
+     */
+    public static final int MAX_PARENT_LEVELS = 4;
+    
+    
+    private TilePlaceholders() {
+    }
+    
+    
+    /**
+     * Returns a placeholder image for the specified tile made from tiles of other zoom levels
+     * held by the specified cache, or null if there are none to make one from. The cache is
+     * only peeked at (see ITileCache.peekTile()), so its usage order is not affected.
+     */
+    public static BufferedImage create(ITileCache cache, String sourceId, TCoordinate coord) {
+        BufferedImage placeholder = fromChildren(cache, sourceId, coord);
+        if (placeholder == null) {
+            placeholder = fromParent(cache, sourceId, coord, MAX_PARENT_LEVELS);
+        }
+        return placeholder;
+    }
+    
+    
+    /**
+     * Crops and scales up the part of the nearest cached tile (up to maxLevels zoom
+     * levels above) that covers the specified tile.
+     */
+    public static BufferedImage fromParent(ITileCache cache, String sourceId, TCoordinate coord, int maxLevels) {
+        int levels = Math.min(maxLevels, coord.getZoom());
+        for (int n = 1; n <= levels; n++) {
+            BufferedImage parent = getLoadedImage(cache, sourceId, coord.getParent(n));
+            if (parent != null) {
+                int width = parent.getWidth();
+                int height = parent.getHeight();
+                int mask = (1 << n) - 1;
+                int subWidth = Math.max(1, width >> n);
+                int subHeight = Math.max(1, height >> n);
+                int sx = (coord.getCol() & mask) * subWidth;
+                int sy = (coord.getRowAsXYZ() & mask) * subHeight;
+                
+                BufferedImage placeholder = new BufferedImage(width, height, TileDecoder.IMAGE_TYPE);
+                Graphics2D g = placeholder.createGraphics();
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g.drawImage(parent, 0, 0, width, height, sx, sy, sx + subWidth, sy + subHeight, null);
+                g.dispose();
+                return placeholder;
+            }
+        }
+        return null;
+    }
+    
+    
+    /**
+     * Scales down the four tiles one zoom level below the specified tile into one
+     * image, if all four of them are cached.
+     */
+    public static BufferedImage fromChildren(ITileCache cache, String sourceId, TCoordinate coord) {
+        if (coord.getZoom() >= TileKey.MAX_ZOOM) {
+            return null;
+        }
+        BufferedImage[] children = new BufferedImage[4];
+        for (int i = 0; i < 4; i++) {
+            children[i] = getLoadedImage(cache, sourceId, coord.getChild(i & 1, i >> 1));
+            if (children[i] == null) {
+                return null;
+            }
+        }
+        
+        int width = children[0].getWidth();
+        int height = children[0].getHeight();
+        BufferedImage placeholder = new BufferedImage(width, height, TileDecoder.IMAGE_TYPE);
+        Graphics2D g = placeholder.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        int halfWidth = width / 2;
+        int halfHeight = height / 2;
+        for (int i = 0; i < 4; i++) {
+            int dx = (i & 1) * halfWidth;
+            int dy = (i >> 1) * halfHeight;
+            g.drawImage(children[i], dx, dy, halfWidth, halfHeight, null);
+        }
+        g.dispose();
+        return placeholder;
+    }
+    
+    
+    /**
+     * Returns the decoded image of the specified tile if it is cached and loaded without
+     * error. Tiles whose image has not been decoded yet (see Tile.setImageDeferred()) are
+     * treated as not cached, since placeholders are made on the render path, where
+     * decoding them would stall the display.
+     */
+    private static BufferedImage getLoadedImage(ITileCache cache, String sourceId, TCoordinate coord) {
+        Tile tile = cache.peekTile(sourceId, coord);
+        if (tile != null && tile.isLoaded() && !tile.hasError() && !tile.isDecodePending()) {
+            return tile.getImageIfDecoded();
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,138 @@
+package org.map4j.loaders.cache;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.map4j.coordinates.TCoordinate;
+import org.map4j.loaders.Tile;
+import org.map4j.loaders.TileKey;
+
+/**
+ * {@link ITileCache} implementation with two tiers: a small LRU cache of decoded tiles
+ * (the "L1" tier, inherited from {@link MemoryTileCache}) backed by a much larger store of
+ * the tiles' encoded (PNG or JPEG) images (the "L2" tier). Tiles evicted from L1 are
+ * demoted to L2, and a tile requested that is only in L2 is promoted back to L1 (and
+ * removed from L2) without going back to the tile loader. A promoted tile is decoded
+ * when it is first needed, usually on the tile loaders' decode stage.
+ * <p>Only tiles that were loaded from encoded bytes (see Tile.getEncodedImage()) can be
+ * demoted. Since an encoded tile is usually a tenth the size of a decoded one, the same
+ * amount of memory holds many more tiles.
+ * <p>A tile promoted from the encoded tier counts as a hit in the statistics of
+ * {@link #getStats()}, but not as an insert (see {@link #getPromotions()}).
+ *
+ * @author Joel Kozikowski
+ */
+public class TwoTierTileCache extends MemoryTileCache {
+    
+    private final ITileByteStore store;
+    private final AtomicLong promotions = new AtomicLong();
+    
+    
+    /**
+     * Constructs a new {@code TwoTierTileCache} that keeps its encoded images on the heap.
+     * @param decodedTiles the maximum number of decoded tiles to hold
+     * @param encodedBytes the maximum number of bytes of encoded images to hold
+     */
+    public TwoTierTileCache(int decodedTiles, long encodedBytes) {
+        this(decodedTiles, new HeapTileByteStore(encodedBytes));
+    }
+    
+    
+    /**
+     * Constructs a new {@code TwoTierTileCache}.
+     * @param decodedTiles the maximum number of decoded tiles to hold
+     * @param store the store to hold the encoded images of tiles evicted from the decoded tier
+     */
+    public TwoTierTileCache(int decodedTiles, ITileByteStore store) {
+        super(decodedTiles);
+        this.store = store;
+    }
+    
+    
+    /**
+     * Retrieves a tile from the decoded tier if present. Otherwise, if its encoded
+     * image is in the encoded tier, it is moved to the decoded tier. The promoted tile
+     * is decoded the first time it is needed (see Tile.setImageDeferred()), not on the
+     * calling thread. The promoted tile skips the admission filter, since it already
+     * earned its place in the cache before it was demoted.
+     */
+    @Override
+    public Tile getTile(String sourceId, TCoordinate coord) {
+        long key = TileKey.of(sourceId, coord);
+        Tile tile = getTile(key);
+        if (tile == null) {
+            synchronized (this) {
+                // Another thread may have promoted the tile in the meantime...
+                tile = peekTile(key);
+                if (tile == null) {
+                    byte[] bytes = store.get(key);
+                    if (bytes != null) {
+                        // The tile's encoded image goes back to the encoded tier when it is demoted again
+                        store.remove(key);
+                        tile = new Tile(sourceId, coord);
+                        tile.setImageDeferred(bytes);
+                        promotions.incrementAndGet();
+                        putTile(tile, false);
+                    }
+                }
+                if (tile != null) {
+                    // getTile(key) counted a miss, but the tile was in the cache after all...
+                    missCount--;
+                    hitCount++;
+                }
+            }
+        }
+        return tile;
+    }
+    
+    
+    /**
+     * Demotes tiles evicted from the decoded tier to the encoded tier. Tiles that
+     * are still loading when they are evicted are demoted once they finish.
+     */
+    @Override
+    protected synchronized void removeEntry(CacheEntry entry) {
+        super.removeEntry(entry);
+        Tile tile = entry.getTile();
+        CompletableFuture<Tile> future = tile.getLoadFuture();
+        if (tile.isLoading() && future != null) {
+            future.thenAccept(this::demote);
+        }
+        else {
+            demote(tile);
+        }
+    }
+    
+    
+    private void demote(Tile tile) {
+        byte[] bytes = tile.getEncodedImage();
+        if (bytes != null && tile.isLoaded() && !tile.hasError()) {
+            store.put(tile.getKey(), bytes);
+        }
+    }
+    
+    
+    @Override
+    public synchronized void clear() {
+        super.clear();
+        store.clear();
+    }
+    
+    
+    /**
+     * Returns the store that holds the encoded tier of this cache
+     */
+    public ITileByteStore getStore() {
+        return store;
+    }
+    
+    
+    /**
+     * Returns the number of tiles that have been decoded from the encoded
+     * tier rather than being loaded by a tile loader.
+     */
+    public long getPromotions() {
+        return promotions.get();
+    }
+
+}
@@ -2,6 +2,8 @@ package org.map4j.render;
 
 import java.awt.Graphics2D;
 import java.awt.Point;
+import java.awt.RenderingHints;
+import java.awt.Shape;
 import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
 
@@ -35,6 +37,16 @@ public class DisplayImage {
     }
 
     
+    /**
+     * Prepares this display image to be recomposed for reuse by the renderer.
+     */
+    void reset(int displayWidth, int displayHeight) {
+        this.displayWidth = displayWidth;
+        this.displayHeight = displayHeight;
+        this.rotHeading = -999;
+    }
+    
+    
     Point getCenter() {
         Point center = new Point();
         center.x = image.getWidth() / 2;
@@ -143,4 +155,51 @@ public class DisplayImage {
         g2d.setTransform(oldG2dTx);
     }
     
+    
+    /**
+     * Draws this image in the upper left hand corner of the specified graphics context, 
+     * rotated to have the specified heading at the top image position. Unlike
+     * drawImageHeadsUp(int, Graphics2D), the rotation is applied as the image is drawn
+     * onto g2d, so no intermediate rotated copy of the image is made. Drawing is clipped
+     * to the display rectangle.
+     * @param degHeading A heading, in degrees, between 0 (North) and 359 (North North West). 90 is East, 180 South, etc.
+     * @param interpolationHint The interpolation to use while rotating, which should be one of
+     *    RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR, VALUE_INTERPOLATION_BILINEAR, or
+     *    VALUE_INTERPOLATION_BICUBIC. Specify NULL to use whatever g2d is currently set to.
+     */
+    public void drawImageHeadsUp(int degHeading, Graphics2D g2d, Object interpolationHint) {
+        
+        Point imgCenter = this.getCenter();
+        
+        AffineTransform oldG2dTx = g2d.getTransform();
+        Shape oldClip = g2d.getClip();
+        Object oldInterpolation = g2d.getRenderingHint(RenderingHints.KEY_INTERPOLATION);
+        
+        g2d.clipRect(0, 0, this.displayWidth, this.displayHeight);
+        if (interpolationHint != null) {
+            g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolationHint);
+        }
+        
+        // Translate the center of the image to the center of the display, then rotate the
+        // image around its center to make it "heading up"...
+        g2d.translate(this.displayWidth / 2 - imgCenter.x, this.displayHeight / 2 - imgCenter.y);
+        g2d.rotate(Math.toRadians(360 - degHeading), imgCenter.x, imgCenter.y);
+        
+        g2d.drawImage(this.image, 0, 0, null);
+        
+        g2d.setTransform(oldG2dTx);
+        g2d.setClip(oldClip);
+        if (interpolationHint != null) {
+            if (oldInterpolation != null) {
+                g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, oldInterpolation);
+            }
+            else {
+                // The hint was not set before, so it is removed again...
+                RenderingHints hints = g2d.getRenderingHints();
+                hints.remove(RenderingHints.KEY_INTERPOLATION);
+                g2d.setRenderingHints(hints);
+            }
+        }
+    }
+    
 }
@@ -0,0 +1,212 @@
+package org.map4j.render;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.map4j.coordinates.PCoordinate;
+import org.map4j.coordinates.TBox;
+import org.map4j.coordinates.TCoordinate;
+import org.map4j.coordinates.WCoordinate;
+
+/**
+ * Predicts where a moving display location (e.g. a vessel's position) is heading, and
+ * which tiles it will need there, so they can be loaded before the display gets to them.
+ * The motion is taken from an explicit heading and speed if one has been set, otherwise
+ * it is estimated from the recent history of positions reported with addFix().
+ * <p>MapRenderer uses this to prefetch the tiles ahead of the display each time the
+ * display moves to a new center tile (see MapRenderer.setLookAhead()).
+ *
+ * @author Joel Kozikowski
+ */
+public class LookAheadPrefetcher {
+    
+    private static final double METERS_PER_DEGREE = 111320.0;
+    private static final double METERS_PER_SECOND_PER_KNOT = 1852.0 / 3600.0;
+    
+    /**
+     * A position at a point in time
+     */
+    private static final class Fix {
+        final double lat;
+        final double lon;
+        final long time;
+        
+        Fix(double lat, double lon, long time) {
+            this.lat = lat;
+            this.lon = lon;
+            this.time = time;
+        }
+    }
+    
+    private final ArrayDeque<Fix> history = new ArrayDeque<>();
+    private double horizonSeconds = 60;
+    private double historySeconds = 30;
+    
+    private double heading = Double.NaN;
+    private double speedKnots = Double.NaN;
+    
+    
+    public LookAheadPrefetcher() {
+    }
+    
+    
+    /**
+     * @param horizonSeconds How far ahead (in seconds) to prefetch tiles
+     */
+    public LookAheadPrefetcher(double horizonSeconds) {
+        this.horizonSeconds = horizonSeconds;
+    }
+    
+    
+    /**
+     * Records the position of the display at the specified time. Positions older than
+     * the history period are discarded.
+     */
+    public synchronized void addFix(WCoordinate position, long timeMillis) {
+        Fix last = history.peekLast();
+        if (last != null && last.time > timeMillis) {
+            // Time went backwards. Start over.
+            history.clear();
+        }
+        history.addLast(new Fix(position.getLat(), position.getLon(), timeMillis));
+        long oldest = timeMillis - (long) (historySeconds * 1000);
+        while (history.size() > 2 && history.peekFirst().time < oldest) {
+            history.removeFirst();
+        }
+    }
+    
+    
+    /**
+     * Sets an explicit heading and speed to predict motion from, rather than the position
+     * history (e.g. from a GPS's course and speed over ground).
+     * @param heading The heading in degrees true (0 is north, 90 is east)
+     * @param speedKnots The speed in knots
+     */
+    public synchronized void setHeadingAndSpeed(double heading, double speedKnots) {
+        this.heading = heading;
+        this.speedKnots = speedKnots;
+    }
+    
+    
+    /**
+     * Goes back to predicting motion from the position history.
+     */
+    public synchronized void clearHeadingAndSpeed() {
+        this.heading = Double.NaN;
+        this.speedKnots = Double.NaN;
+    }
+    
+    
+    public synchronized double getHorizonSeconds() {
+        return horizonSeconds;
+    }
+    
+    
+    /**
+     * Sets how far ahead (in seconds of travel) tiles should be prefetched.
+     */
+    public synchronized void setHorizonSeconds(double horizonSeconds) {
+        this.horizonSeconds = horizonSeconds;
+    }
+    
+    
+    public synchronized double getHistorySeconds() {
+        return historySeconds;
+    }
+    
+    
+    /**
+     * Sets how many seconds of position history are used to estimate motion. Longer
+     * periods smooth out noisy positions, but are slower to notice a turn.
+     */
+    public synchronized void setHistorySeconds(double historySeconds) {
+        this.historySeconds = historySeconds;
+    }
+    
+    
+    /**
+     * Returns the current velocity as {degrees of latitude, degrees of longitude} per
+     * second at the specified latitude, or null if it is not known.
+     */
+    private double[] getVelocity(double lat) {
+        if (!Double.isNaN(heading) && !Double.isNaN(speedKnots)) {
+            double metersPerSecond = speedKnots * METERS_PER_SECOND_PER_KNOT;
+            double radians = Math.toRadians(heading);
+            double cosLat = Math.max(0.01, Math.cos(Math.toRadians(lat)));
+            return new double[] { metersPerSecond * Math.cos(radians) / METERS_PER_DEGREE,
+                                  metersPerSecond * Math.sin(radians) / (METERS_PER_DEGREE * cosLat) };
+        }
+        
+        if (history.size() < 2) {
+            return null;
+        }
+        Fix first = history.peekFirst();
+        Fix last = history.peekLast();
+        double seconds = (last.time - first.time) / 1000.0;
+        if (seconds < 1) {
+            return null;
+        }
+        return new double[] { (last.lat - first.lat) / seconds, (last.lon - first.lon) / seconds };
+    }
+    
+    
+    /**
+     * Returns the tiles that a display centered on "from" will need over the time horizon,
+     * nearest in time first, excluding the tiles of the current grid.
+     * @param from The current display location
+     * @param zoom The zoom level of the display
+     * @param currentGrid The tiles already being displayed (may be null)
+     * @param gridRadius The number of tiles needed on each side of the center tile
+     */
+    public synchronized List<TCoordinate> getLookAheadTiles(WCoordinate from, int zoom, TBox currentGrid, int gridRadius) {
+        List<TCoordinate> tiles = new ArrayList<>();
+        double[] velocity = getVelocity(from.getLat());
+        if (velocity == null || horizonSeconds <= 0) {
+            return tiles;
+        }
+        
+        PCoordinate pFrom = from.asP(zoom);
+        TCoordinate tFrom = pFrom.asT(true);
+        WCoordinate to = new WCoordinate(from.getLat() + velocity[0] * horizonSeconds,
+                                         from.getLon() + velocity[1] * horizonSeconds);
+        PCoordinate pTo = to.asP(zoom);
+        int tileSize = tFrom.getTileSize();
+        double dx = pTo.getPixelX() - pFrom.getPixelX();
+        double dy = pTo.getPixelY() - pFrom.getPixelY();
+        double distance = Math.sqrt(dx * dx + dy * dy);
+        if (distance < tileSize / 2) {
+            // Not going to get anywhere new in time
+            return tiles;
+        }
+        
+        // Walk the track half a tile at a time, adding the grid needed at each step...
+        int maxTile = (1 << zoom) - 1;
+        Set<Long> seen = new HashSet<>();
+        int steps = (int) Math.ceil(distance / (tileSize / 2));
+        for (int step = 1; step <= steps; step++) {
+            double fraction = (double) step / steps;
+            int centerCol = (int) Math.floor((pFrom.getPixelX() + dx * fraction) / tileSize);
+            int centerRow = (int) Math.floor((pFrom.getPixelY() + dy * fraction) / tileSize);
+            for (int row = Math.max(0, centerRow - gridRadius); row <= Math.min(maxTile, centerRow + gridRadius); row++) {
+                for (int col = Math.max(0, centerCol - gridRadius); col <= Math.min(maxTile, centerCol + gridRadius); col++) {
+                    if (inBox(currentGrid, col, row) || !seen.add(((long) col << 32) | row)) {
+                        continue;
+                    }
+                    tiles.add(tFrom.getT(col, row));
+                }
+            }
+        }
+        return tiles;
+    }
+    
+    
+    private static boolean inBox(TBox box, int col, int row) {
+        return box != null &&
+               col >= box.t1.getCol() && col <= box.t2.getCol() &&
+               row >= box.t1.getRow() && row <= box.t2.getRow();
+    }
+
+}
@@ -1,7 +1,10 @@
 package org.map4j.render;
 
+import java.awt.AlphaComposite;
+import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.util.List;
 
 import org.map4j.coordinates.PBox;
 import org.map4j.coordinates.PCoordinate;
@@ -36,12 +39,16 @@ public class MapRenderer implements TileGridImageTopicListener {
      */
     public static final String TOPIC_CHANGED = "changed";
     
+    private static final Color CLEAR = new Color(0, 0, 0, 0);
+    
     private int displayWidth;
     private int displayHeight;
     private int pixelDisplayDiameter;
     
     private TileGridImage tileGridImage;
     private DisplayImage displayImage;
+    private DisplayImage frontDisplayImage;
+    private DisplayImage backDisplayImage;
     
     private TileLoaderController tileController;
     private int zoomLevel;
@@ -49,6 +56,9 @@ public class MapRenderer implements TileGridImageTopicListener {
     private WCoordinate wCenter;
     private PCoordinate pCenter;
     private boolean waitForCompleteImage;
+    private boolean scrollingTileGrid;
+    private boolean displayImagePooling;
+    private LookAheadPrefetcher lookAhead;
     
     public MapRenderer() {
         this(16);
@@ -110,6 +120,8 @@ public class MapRenderer implements TileGridImageTopicListener {
         this.discardTileGrid();
         
         this.displayImage = null;
+        this.frontDisplayImage = null;
+        this.backDisplayImage = null;
     }
     
     
@@ -141,8 +153,11 @@ public class MapRenderer implements TileGridImageTopicListener {
             // one tile yet still fill the entire display.
             pixelDisplayDiameter = 2 * enclosingRadius(displayWidth, displayHeight);
             
-            // How many tiles are required to compose that image box?
-            tileGridSize = (int)Math.ceil(pixelDisplayDiameter / TileGridImage.pixelTileSize) + 2;
+            // How many tiles are required to compose that image box? Partial tiles are rounded
+            // up, and a tile is added on each side since the center tile of an even sized
+            // grid is right of (and below) the middle...
+            int tilesAcross = (pixelDisplayDiameter + TileGridImage.pixelTileSize - 1) / TileGridImage.pixelTileSize;
+            tileGridSize = tilesAcross + 2;
             
             displayImage = null;
             
@@ -281,23 +296,49 @@ public class MapRenderer implements TileGridImageTopicListener {
     private void recalcLocation(WCoordinate displayLocation) {
        // The location has changed...
        this.wCenter = new WCoordinate(displayLocation);
+       if (lookAhead != null) {
+           lookAhead.addFix(this.wCenter, System.currentTimeMillis());
+       }
        
        // Convert the location to pixel space...
        pCenter = this.wCenter.asP(this.zoomLevel);
        
+       // Tiles closest to the new center should be loaded first...
+       if (tileController != null) {
+           tileController.setLoadFocus(pCenter);
+       }
+       
        if (this.displayWidth > 0 && this.displayHeight > 0) {
            // What should be the center tile (in XYZ tile space)...
            TCoordinate tCenter = pCenter.asT(true);
            if (tileGridImage == null || !tileGridImage.getTCenter().equals(tCenter)) {
-               // We have a new center tile!
-               this.discardTileGrid();
-               tileGridImage = new TileGridImage(tileController, pCenter, tileGridSize);
+               // We have a new center tile! A scrolling grid can usually just shift over
+               // to it. Otherwise, a new grid is needed...
+               if (tileGridImage == null || !tileGridImage.scrollTo(pCenter)) {
+                   this.discardTileGrid();
+                   tileGridImage = new TileGridImage(tileController, pCenter, tileGridSize, scrollingTileGrid);
+               }
+               prefetchAhead();
            }
        }
        displayImage = null;
     }
     
     
+    /**
+     * Queues loads for the tiles the display is predicted to need next (if a look
+     * ahead prefetcher has been set). Prefetched tiles are loaded after every tile
+     * of the current grid (see AbstractTileLoader.getPriority()).
+     */
+    private void prefetchAhead() {
+        if (lookAhead != null && tileController != null && tileGridImage != null) {
+            List<TCoordinate> ahead = lookAhead.getLookAheadTiles(wCenter, zoomLevel, tileGridImage.getTileBox(), tileGridSize / 2);
+            // Leave room for the current grid and the grid it is scrolling from...
+            tileController.prefetch(ahead, 2 * tileGridSize * tileGridSize);
+        }
+    }
+    
+    
     /**
      * Retrieves the current display image that will be large
      * enough to rotate around its center, yet still fill the
@@ -314,64 +355,114 @@ public class MapRenderer implements TileGridImageTopicListener {
             }
             
             
-            PCoordinate pTileGridUL = tileGridImage.getTileBox().t1.asP();
-            
-            int subImageCenterX = pCenter.getPixelX() - pTileGridUL.getPixelX();
-            int subImageCenterY = pCenter.getPixelY() - pTileGridUL.getPixelY();
-            
             int pixelDisplayRadius = pixelDisplayDiameter / 2;
-            int displayCornerX = subImageCenterX - pixelDisplayRadius;
-            int displayCornerY = subImageCenterY - pixelDisplayRadius;
-            
-            // Make a new image...
-            BufferedImage newImage = new BufferedImage(pixelDisplayDiameter, pixelDisplayDiameter, tileGridImage.getImage().getType());
-            Graphics2D target2D = newImage.createGraphics();
+            int imageType = tileGridImage.getImage().getType();
             
-            target2D.drawImage(tileGridImage.getImage(), 0, 0, pixelDisplayDiameter-1, pixelDisplayDiameter-1,
-                               displayCornerX, displayCornerY, displayCornerX + pixelDisplayDiameter-1, displayCornerY + pixelDisplayDiameter-1, null);
+            // Use the back buffer if pooling, otherwise make a new image...
+            DisplayImage newDisplayImage = null;
+            boolean recycled = false;
+            if (this.displayImagePooling && backDisplayImage != null &&
+                backDisplayImage.getWidth() == pixelDisplayDiameter &&
+                backDisplayImage.getImage().getType() == imageType) {
+                newDisplayImage = backDisplayImage;
+                newDisplayImage.reset(this.displayWidth, this.displayHeight);
+                recycled = true;
+            }
+            else {
+                BufferedImage newImage = new BufferedImage(pixelDisplayDiameter, pixelDisplayDiameter, imageType);
+                PBox pNewBox = new PBox(new PCoordinate(pCenter), new PCoordinate(pCenter));
+                newDisplayImage = new DisplayImage(pNewBox, newImage, this.displayWidth, this.displayHeight);
+            }
             
             // Calculate a pixel box to represent the new image...
-            PCoordinate pNewUL = new PCoordinate(pCenter);
-            pNewUL.adjustX(-pixelDisplayRadius);
-            pNewUL.adjustY(-pixelDisplayRadius); 
-
-            PCoordinate pNewLR = new PCoordinate(pNewUL);
-            pNewLR.adjustX(pixelDisplayDiameter - 1);
-            pNewLR.adjustY(pixelDisplayDiameter - 1);
+            PBox pImageBox = newDisplayImage.getLocation();
+            pImageBox.p1.set(pCenter);
+            pImageBox.p1.adjustX(-pixelDisplayRadius);
+            pImageBox.p1.adjustY(-pixelDisplayRadius); 
+            pImageBox.p2.set(pImageBox.p1);
+            pImageBox.p2.adjustX(pixelDisplayDiameter - 1);
+            pImageBox.p2.adjustY(pixelDisplayDiameter - 1);
             
-            PBox pImageBox = new PBox(pNewUL, pNewLR);
+            // The tile grid should cover the entire image, so it simply replaces whatever
+            // a recycled image had on it before. Anything it does not cover is cleared
+            // rather than left over from an earlier frame...
+            Graphics2D target2D = newDisplayImage.getImage().createGraphics();
+            target2D.setComposite(AlphaComposite.Src);
+            if (recycled) {
+                target2D.setColor(CLEAR);
+                target2D.fillRect(0, 0, pixelDisplayDiameter, pixelDisplayDiameter);
+            }
+            tileGridImage.drawImage(target2D, 0, 0, pImageBox.p1, pixelDisplayDiameter, pixelDisplayDiameter);
+            target2D.setComposite(AlphaComposite.SrcOver);
             
             // If markers are visible and exist, draw them on the map...
             if (this.isMapLayersVisible() && this.getLayerRoot() != null) {
-                // Draw visible map markers
-                VisibleMapObjectVisitor visitor = new VisibleMapObjectVisitor(this.getLayerRoot()) {
-                    @Override
-                    public void visit(IMapObject mapObject) {
-                        if (mapObject.isContained(pImageBox)) {
-                            mapObject.paint(target2D, pImageBox);
-                        }
-                    }
-                };
-                visitor.run();
+                if (layerPainter == null) {
+                    layerPainter = new LayerPainter(this.getLayerRoot());
+                }
+                layerPainter.paint(target2D, pImageBox);
             }
             
             target2D.dispose();
             
-            displayImage = new DisplayImage(pImageBox, newImage, this.displayWidth, this.displayHeight);
+            if (this.displayImagePooling) {
+                // Swap buffers...
+                backDisplayImage = frontDisplayImage;
+                frontDisplayImage = newDisplayImage;
+            }
+            displayImage = newDisplayImage;
         }
         
         return displayImage;
     }
     
+    
+    /**
+     * A visitor that paints all visible map objects of a layer tree that lie
+     * within a display image. A single instance is reused for every image
+     * composed from the same layer root.
+     */
+    private static class LayerPainter extends VisibleMapObjectVisitor {
+        
+        private Graphics2D target2D;
+        private PBox pImageBox;
+        
+        LayerPainter(MapLayer root) {
+            super(root);
+        }
+        
+        void paint(Graphics2D target2D, PBox pImageBox) {
+            this.target2D = target2D;
+            this.pImageBox = pImageBox;
+            try {
+                run();
+            }
+            finally {
+                this.target2D = null;
+                this.pImageBox = null;
+            }
+        }
+        
+        @Override
+        public void visit(IMapObject mapObject) {
+            if (mapObject.isContained(pImageBox)) {
+                mapObject.paint(target2D, pImageBox);
+            }
+        }
+    }
+    
+    
     private MapLayer layerRoot;
+    private LayerPainter layerPainter;
     
     /**
      * Sets an optional set of map objects layers that will be rendered on the map, provided
      * isMapMarkersVisibile() is true.
      * @param root
      */
-    public void setLayerRoot(MapLayer root) {
+    public synchronized void setLayerRoot(MapLayer root) {
         this.layerRoot = root;
+        this.layerPainter = null;
     }
     
     
@@ -422,4 +513,76 @@ public class MapRenderer implements TileGridImageTopicListener {
     }
 
     
+    /**
+     * If set to TRUE, the tile grid behind the display image is kept as a scrolling ring
+     * buffer. When the display location moves into a new center tile, the grid is shifted
+     * by the rows and/or columns needed, keeping the tiles already rendered and only 
+     * loading the newly exposed edge tiles. If FALSE, a complete new tile grid is built 
+     * whenever the center tile changes. The default value is FALSE.
+     */
+    public void setScrollingTileGrid(boolean scrollingTileGrid) {
+        boolean notify = false;
+        synchronized(this) {
+            if (this.scrollingTileGrid != scrollingTileGrid) {
+                this.scrollingTileGrid = scrollingTileGrid;
+                
+                // Rebuild the grid in the new mode...
+                this.discardTileGrid();
+                if (this.wCenter != null) {
+                    recalcLocation(this.wCenter);
+                    notify = true;
+                }
+            }
+        }
+        
+        if (notify) {
+            broker.publish(TOPIC_CHANGED, this);
+        }
+    }
+    
+    
+    public boolean isScrollingTileGrid() {
+        return scrollingTileGrid;
+    }
+    
+    
+    /**
+     * If set to TRUE, the renderer keeps two display images (a front and a back buffer) and
+     * composes each new display image into the back buffer rather than allocating a new
+     * image every time the display is invalidated. The image returned by getDisplayImage()
+     * remains valid until the second call to getDisplayImage() that follows an invalidation,
+     * so callers should draw it before requesting another one.  The default value is FALSE.
+     */
+    public synchronized void setDisplayImagePooling(boolean displayImagePooling) {
+        this.displayImagePooling = displayImagePooling;
+        if (!displayImagePooling) {
+            this.frontDisplayImage = null;
+            this.backDisplayImage = null;
+        }
+    }
+    
+    
+    public boolean isDisplayImagePooling() {
+        return displayImagePooling;
+    }
+
+    
+    /**
+     * Sets the prefetcher used to load the tiles ahead of a moving display location
+     * (e.g. a vessel underway) before the display gets to them. Each time the display
+     * moves to a new center tile, the tiles the prefetcher predicts will be needed
+     * within its time horizon are queued for loading. Display locations are fed to the
+     * prefetcher's position history automatically. NULL (the default) turns look ahead
+     * prefetching off.
+     */
+    public synchronized void setLookAhead(LookAheadPrefetcher lookAhead) {
+        this.lookAhead = lookAhead;
+    }
+    
+    
+    public synchronized LookAheadPrefetcher getLookAhead() {
+        return lookAhead;
+    }
+
+
 }
@@ -2,15 +2,22 @@ package org.map4j.render;
 
 import java.awt.Graphics;
 import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import org.map4j.coordinates.PBox;
 import org.map4j.coordinates.PCoordinate;
 import org.map4j.coordinates.TBox;
 import org.map4j.coordinates.TCoordinate;
+import org.map4j.loaders.AbstractTileLoader;
 import org.map4j.loaders.Tile;
 import org.map4j.loaders.TileLoaderController;
 import org.map4j.loaders.Tile.TileTopicListener;
 import org.map4j.tinymq.TinyMQ;
+import org.map4j.utils.TileDecoder;
 
 
 /**
@@ -18,6 +25,11 @@ import org.map4j.tinymq.TinyMQ;
  * adjacent tiles somewhere in pixel space.  The grid will be loaded asynchronously,
  * publishing an "UPDATED" topic to the broker whenever the image has
  * changed (usually as each tile is successfully loaded).
+ * <p>A grid image created in "scrolling" mode treats its base image as a toroidal
+ * ring buffer: each tile is stored in the slot (col mod tilesPerSide, row mod tilesPerSide).
+ * This allows the grid to be re-centered by a few rows or columns with scrollTo(), keeping
+ * all of the tiles that are already rendered and loading only the newly exposed edge tiles.
+ * Use drawImage() to extract an area of the grid, as getImage() returns the raw ring buffer.
  * 
  * @author Joel Kozikowski
  */
@@ -44,6 +56,8 @@ public class TileGridImage  implements TileTopicListener {
     private BufferedImage baseImage;
     private TileLoaderController tileController;
     private int loaded;
+    private boolean scrolling;
+    private int[] loadOrder;
     
     /**
      * Create a TileGridImage with tiles loaded from the specified loader controller. The grid
@@ -52,19 +66,34 @@ public class TileGridImage  implements TileTopicListener {
      * tilesPerSide x tilesPerSide.
      */
     public TileGridImage(TileLoaderController tileController, PCoordinate pCenter, int tilesPerSide) {
+        this(tileController, pCenter, tilesPerSide, false);
+    }
+
+    
+    /**
+     * Create a TileGridImage with tiles loaded from the specified loader controller.
+     * @param scrolling if TRUE, the grid is stored as a ring buffer that can be shifted
+     *   to a new center tile via scrollTo() without being rebuilt.
+     * @see #TileGridImage(TileLoaderController, PCoordinate, int)
+     */
+    public TileGridImage(TileLoaderController tileController, PCoordinate pCenter, int tilesPerSide, boolean scrolling) {
         
         this.tileController = tileController;
         this.tilesPerSide = tilesPerSide;
+        this.scrolling = scrolling;
         
         this.pCenter = new PCoordinate(pCenter);
         this.tCenter = pCenter.asT(true); 
         
         tileGrid = new Tile[tilesPerSide][tilesPerSide];
+        loadOrder = centerFirstOrder(tilesPerSide);
         
         int masterImageSize = tilesPerSide * pixelTileSize;
-        baseImage = new BufferedImage(masterImageSize, masterImageSize, BufferedImage.TYPE_INT_ARGB);
+        // Tiles are decoded to the same image type, so drawing them is a straight copy...
+        baseImage = new BufferedImage(masterImageSize, masterImageSize, TileDecoder.IMAGE_TYPE);
 
         Tile.broker.subscribe(Tile.TOPIC_LOADED, this);
+        Tile.broker.subscribe(Tile.TOPIC_DECODED, this);
         
         recalcTileGrid();
     }
@@ -87,6 +116,7 @@ public class TileGridImage  implements TileTopicListener {
         if (tileController != null) {
             tileController.cancelOutstandingJobs();
             Tile.broker.unsubscribe(Tile.TOPIC_LOADED, this);
+            Tile.broker.unsubscribe(Tile.TOPIC_DECODED, this);
             tileController = null;
         }
     }
@@ -109,18 +139,14 @@ public class TileGridImage  implements TileTopicListener {
     public synchronized boolean isLoadCompleted() {
         if (loaded == -1) {
             // Traverse the grid and return FALSE if any tiles are found to be
-            // in the "loaded" state.
-            TCoordinate tc = new TCoordinate(tileGridUL);
-            for (int col = 0; col < tilesPerSide; col++) {
-               tc.setCol(tileGridUL.getCol());
-               for (int row = 0; row < tilesPerSide; row++) {
-                   if (tileGrid[col][row].isLoading()) {
+            // in the "loading" state.
+            for (int row = 0; row < tilesPerSide; row++) {
+               for (int col = 0; col < tilesPerSide; col++) {
+                   if (tileGrid[row][col].isLoading() || tileGrid[row][col].isDecodePending()) {
                        // It only takes one to indicate we are not done...
                        return false;
                    }
-                   tc.adjustCol(1);
                } // col
-               tc.adjustRow(1);
             } // row
             
             // If we get here, then no tiles are marked "isLoading()"...
@@ -136,11 +162,105 @@ public class TileGridImage  implements TileTopicListener {
      * Forces the image to be re-rendered.
      */
     public synchronized void refresh() {
-        this.loadTileGrid();
+        this.loadTileGrid(null);
         broker.publish(TOPIC_UPDATED, this);
     }
     
     
+    /**
+     * Returns TRUE if this grid image was created in scrolling (ring buffer) mode.
+     */
+    public boolean isScrolling() {
+        return scrolling;
+    }
+    
+    
+    /**
+     * Re-centers a scrolling grid image so the tile containing newPCenter becomes
+     * the center tile. Tiles that remain in the grid are kept as is. Only the tiles
+     * in the newly exposed rows and columns are requested from the tile controller.
+     * @return TRUE if the grid was scrolled. FALSE is returned if this grid is not a
+     *   scrolling grid, or the new center can not be reached by scrolling (i.e. a
+     *   different zoom level or a shift of a full grid width or more). In that case
+     *   the grid is left untouched and should be replaced.
+     */
+    public synchronized boolean scrollTo(PCoordinate newPCenter) {
+        if (!scrolling || tileController == null) {
+            return false;
+        }
+        
+        TCoordinate newTCenter = newPCenter.asT(true);
+        if (newTCenter.getZoom() != tCenter.getZoom()) {
+            return false;
+        }
+        
+        int colShift = newTCenter.getCol() - tCenter.getCol();
+        int rowShift = newTCenter.getRow() - tCenter.getRow();
+        if (Math.abs(colShift) >= tilesPerSide || Math.abs(rowShift) >= tilesPerSide) {
+            return false;
+        }
+        
+        TBox oldTileBox = getTileBox();
+        
+        this.pCenter = new PCoordinate(newPCenter);
+        this.tCenter = newTCenter;
+        tileGridUL.adjustCol(colShift);
+        tileGridUL.adjustRow(rowShift);
+        
+        loadTileGrid(oldTileBox);
+        return true;
+    }
+    
+    
+    /**
+     * Draws the section of this grid image that covers the area of pixel space starting at pUL 
+     * that is width x height pixels in size onto g, with its upper left corner at (dx, dy). 
+     * Any part of the area that lies outside of the grid is left undrawn.
+     */
+    public synchronized void drawImage(Graphics g, int dx, int dy, PCoordinate pUL, int width, int height) {
+        PCoordinate pGridUL = tileGridUL.asP();
+        int imageSize = baseImage.getWidth();
+        
+        int left = Math.max(pUL.getPixelX(), pGridUL.getPixelX());
+        int top = Math.max(pUL.getPixelY(), pGridUL.getPixelY());
+        int right = Math.min(pUL.getPixelX() + width, pGridUL.getPixelX() + imageSize);
+        int bottom = Math.min(pUL.getPixelY() + height, pGridUL.getPixelY() + imageSize);
+        if (left >= right || top >= bottom) {
+            return;
+        }
+        
+        dx += left - pUL.getPixelX();
+        dy += top - pUL.getPixelY();
+        int w = right - left;
+        int h = bottom - top;
+        
+        if (!scrolling) {
+            int sx = left - pGridUL.getPixelX();
+            int sy = top - pGridUL.getPixelY();
+            g.drawImage(baseImage, dx, dy, dx + w, dy + h, sx, sy, sx + w, sy + h, null);
+            return;
+        }
+        
+        // In a ring buffer, the requested area wraps around the right and bottom
+        // edges of the base image at most once, so it splits into up to four pieces...
+        int sx = Math.floorMod(left, imageSize);
+        int sy = Math.floorMod(top, imageSize);
+        int w1 = Math.min(w, imageSize - sx);
+        int h1 = Math.min(h, imageSize - sy);
+        
+        g.drawImage(baseImage, dx, dy, dx + w1, dy + h1, sx, sy, sx + w1, sy + h1, null);
+        if (w1 < w) {
+            g.drawImage(baseImage, dx + w1, dy, dx + w, dy + h1, 0, sy, w - w1, sy + h1, null);
+        }
+        if (h1 < h) {
+            g.drawImage(baseImage, dx, dy + h1, dx + w1, dy + h, sx, 0, sx + w1, h - h1, null);
+            if (w1 < w) {
+                g.drawImage(baseImage, dx + w1, dy + h1, dx + w, dy + h, 0, 0, w - w1, h - h1, null);
+            }
+        }
+    }
+    
+    
     
     /**
      * Returns the pixel box that represents the area covered by this image.
@@ -190,14 +310,32 @@ public class TileGridImage  implements TileTopicListener {
     @Override
     public void onPublish(String topic, Tile tile) {
         if (topic.equals(Tile.TOPIC_LOADED)) {
-            synchronized(this) {
-               renderTile(tile);
+            if (tile.isDecodePending() && isGridTileLocked(tile)) {
+                // The decode stage usually decoded it already, unless it was loaded as a
+                // prefetch. Decode outside of the grid's lock so tiles can be decoded in parallel...
+                tile.decode();
+            }
+            drawTile(tile);
+        }
+        else if (topic.equals(Tile.TOPIC_DECODED)) {
+            // A tile decoded while it is loading is drawn once TOPIC_LOADED is published. Others
+            // (e.g. cached tiles handed to decodeAsync() by loadTileGrid()) are drawn now...
+            CompletableFuture<Tile> loading = tile.getLoadFuture();
+            if ((loading == null || loading.isDone()) && isGridTileLocked(tile)) {
+                drawTile(tile);
             }
-            broker.publish(TOPIC_UPDATED, this);
         }
     }
     
     
+    private void drawTile(Tile tile) {
+        synchronized(this) {
+           renderTile(tile);
+        }
+        broker.publish(TOPIC_UPDATED, this);
+    }
+    
+    
     private void recalcTileGrid() {
         // We are about to re-calculate the tile grid, so stop any pending load jobs...
         tileController.cancelOutstandingJobs(); 
@@ -207,39 +345,134 @@ public class TileGridImage  implements TileTopicListener {
         tileGridUL.adjustCol(-tilesPerSide / 2);
         tileGridUL.adjustRow(-tilesPerSide / 2);
         
-        loadTileGrid();
+        loadTileGrid(null);
     }
     
     
-    private void loadTileGrid() {
+    /**
+     * Retrieves and renders every tile of the grid that is not inside the
+     * tile box "retained" (which may be null to load the entire grid). Tiles
+     * are requested starting at the center of the grid and working outward.
+     */
+    private void loadTileGrid(TBox retained) {
         loaded = -1;
-        TCoordinate tc = new TCoordinate(tileGridUL);
-        for (int col = 0; col < tilesPerSide; col++) {
-           tc.setCol(tileGridUL.getCol());
-           for (int row = 0; row < tilesPerSide; row++) {
-               tileGrid[col][row] = tileController.getTile(tc);
-               this.renderTile(tileGrid[col][row]);
-               tc.adjustCol(1);
-           } // col
-           tc.adjustRow(1);
-        } // row
+        List<TCoordinate> coords = new ArrayList<>(loadOrder.length);
+        for (int index : loadOrder) {
+           TCoordinate tc = new TCoordinate(tileGridUL);
+           tc.setCol(tileGridUL.getCol() + index % tilesPerSide);
+           tc.setRow(tileGridUL.getRow() + index / tilesPerSide);
+           if (retained == null || !retained.contains(tc)) {
+               coords.add(tc);
+           }
+        }
+        
+        // Request the tiles as one batch so the loader can retrieve them together...
+        for (Tile tile : tileController.getTiles(coords)) {
+            tileGrid[slotRow(tile.coord.getRowAsXYZ())][slotCol(tile.coord.getCol())] = tile;
+            this.renderTile(tile);
+            if (tile.isDecodePending()) {
+                // A cached tile that was never displayed. Rather than decoding it while
+                // holding the grid, it is drawn again once the decode stage has decoded it...
+                AbstractTileLoader.decodeAsync(tile);
+            }
+        }
+    }
+    
+    
+    /**
+     * Returns the cell indexes (row * tilesPerSide + col) of a grid with the specified
+     * number of tiles per side, ordered by their distance from the center cell.
+     */
+    private static int[] centerFirstOrder(int tilesPerSide) {
+        int center = tilesPerSide / 2;
+        Integer[] cells = new Integer[tilesPerSide * tilesPerSide];
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = i;
+        }
+        Arrays.sort(cells, Comparator.comparingInt((Integer cell) -> {
+            int dCol = cell % tilesPerSide - center;
+            int dRow = cell / tilesPerSide - center;
+            return dCol * dCol + dRow * dRow;
+        }));
+        
+        int[] order = new int[cells.length];
+        for (int i = 0; i < cells.length; i++) {
+            order[i] = cells[i];
+        }
+        return order;
     }
 
     
+    /**
+     * Returns the index of the tileGrid column (and base image tile column) that holds tiles
+     * from the specified tile column.
+     */
+    private int slotCol(int col) {
+        return scrolling ? Math.floorMod(col, tilesPerSide) : col - tileGridUL.getCol();
+    }
+    
+    
+    /**
+     * Returns the index of the tileGrid row (and base image tile row) that holds tiles
+     * from the specified tile row (in XYZ space).
+     */
+    private int slotRow(int rowXYZ) {
+        return scrolling ? Math.floorMod(rowXYZ, tilesPerSide) : rowXYZ - tileGridUL.getRowAsXYZ();
+    }
+    
+    
+    /**
+     * Returns TRUE if the specified tile is one of the tiles of the grid (rather than just
+     * a tile at the same location), for callers that do not hold the grid's lock (which
+     * scrollTo() holds while moving the grid).
+     */
+    private synchronized boolean isGridTileLocked(Tile tile) {
+        return isInGrid(tile) &&
+               tileGrid[slotRow(tile.coord.getRowAsXYZ())][slotCol(tile.coord.getCol())] == tile;
+    }
+    
+    
+    /**
+     * Returns TRUE if the specified tile's location is inside the tile grid. The
+     * caller must hold the grid's lock.
+     */
+    private boolean isInGrid(Tile tile) {
+        TCoordinate ul = tileGridUL;
+        if (ul == null) {
+            return false;
+        }
+        int colOffset = tile.coord.getCol() - ul.getCol();
+        int rowOffset = tile.coord.getRowAsXYZ() - ul.getRowAsXYZ();
+        return tile.coord.getZoom() == ul.getZoom() &&
+               colOffset >= 0 && colOffset < tilesPerSide &&
+               rowOffset >= 0 && rowOffset < tilesPerSide;
+    }
+    
+    
     /**
      * Draws the specified tile onto the base image in its current state
-     * at its appropriate location.
+     * at its appropriate location. Tiles that are not part of this grid
+     * are ignored.
      */
     private void renderTile(Tile tile) {
-        int colOffset = tile.coord.getCol() - tileGridUL.getCol();
-        int rowOffset = tile.coord.getRowAsXYZ() - tileGridUL.getRowAsXYZ();
+        if (!isInGrid(tile)) {
+            return;
+        }
+        
+        int slotCol = slotCol(tile.coord.getCol());
+        int slotRow = slotRow(tile.coord.getRowAsXYZ());
+        if (tileGrid[slotRow][slotCol] != tile) {
+            // A tile for the same location, but not the one in this grid (e.g.
+            // from another tile source)
+            return;
+        }
         
-        int x = colOffset * pixelTileSize;
-        int y = rowOffset * pixelTileSize;
+        int x = slotCol * pixelTileSize;
+        int y = slotRow * pixelTileSize;
         
         Graphics g = baseImage.getGraphics();
         g.clearRect(x, y, pixelTileSize, pixelTileSize);
-        g.drawImage(tile.getImage(), x, y, null);
+        g.drawImage(tile.getImageIfDecoded(), x, y, null);
         g.dispose();
     }
 
@@ -23,6 +23,8 @@ public class Map4JPanel extends JPanel implements MapRendererTopicListener {
 
     private MapRenderer render;
     private int heading;
+    private boolean rotateAtDrawTime;
+    private Object rotationInterpolation;
     
     
     public Map4JPanel() {
@@ -53,7 +55,12 @@ public class Map4JPanel extends JPanel implements MapRendererTopicListener {
             Graphics2D g2d = (Graphics2D) g.create();
             try {
                 DisplayImage img = this.render.getDisplayImage();
-                img.drawImageHeadsUp(heading, g2d);
+                if (rotateAtDrawTime) {
+                    img.drawImageHeadsUp(heading, g2d, rotationInterpolation);
+                }
+                else {
+                    img.drawImageHeadsUp(heading, g2d);
+                }
             }
             catch (Exception ex) {
                ex.printStackTrace(System.err);
@@ -220,4 +227,70 @@ public class Map4JPanel extends JPanel implements MapRendererTopicListener {
         return render.isWaitForCompleteImage();
     }    
     
+    
+    /**
+     * If set to TRUE, the map's tile grid scrolls as the position moves from tile to tile,
+     * reusing the tiles already displayed and loading only the newly exposed edge tiles.
+     * The default value is FALSE.
+     * @see MapRenderer#setScrollingTileGrid(boolean)
+     */
+    public void setScrollingTileGrid(boolean scrollingTileGrid) {
+        render.setScrollingTileGrid(scrollingTileGrid);
+    }
+    
+    
+    public boolean isScrollingTileGrid() {
+        return render.isScrollingTileGrid();
+    }
+    
+    
+    /**
+     * If set to TRUE, the map reuses a pair of display image buffers rather than
+     * allocating a new display image each time the map changes. The default value is FALSE.
+     * @see MapRenderer#setDisplayImagePooling(boolean)
+     */
+    public void setDisplayImagePooling(boolean displayImagePooling) {
+        render.setDisplayImagePooling(displayImagePooling);
+    }
+    
+    
+    public boolean isDisplayImagePooling() {
+        return render.isDisplayImagePooling();
+    }
+    
+    
+    /**
+     * If set to TRUE, the map image is rotated to the current heading as it is painted
+     * rather than by way of an intermediate rotated copy of the image that is 
+     * rebuilt each time the heading changes. The default value is FALSE.
+     * @see DisplayImage#drawImageHeadsUp(int, Graphics2D, Object)
+     */
+    public void setRotateAtDrawTime(boolean rotateAtDrawTime) {
+        if (this.rotateAtDrawTime != rotateAtDrawTime) {
+            this.rotateAtDrawTime = rotateAtDrawTime;
+            repaint();
+        }
+    }
+    
+    
+    public boolean isRotateAtDrawTime() {
+        return rotateAtDrawTime;
+    }
+    
+    
+    /**
+     * Sets the interpolation used to rotate the map when isRotateAtDrawTime() is
+     * TRUE. This should be one of the RenderingHints.VALUE_INTERPOLATION_* values,
+     * or NULL (the default) to use the graphics context's own setting.
+     */
+    public void setRotationInterpolation(Object rotationInterpolation) {
+        this.rotationInterpolation = rotationInterpolation;
+        repaint();
+    }
+    
+    
+    public Object getRotationInterpolation() {
+        return rotationInterpolation;
+    }
+    
 }
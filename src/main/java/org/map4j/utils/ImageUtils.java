@@ -5,6 +5,7 @@ import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
@@ -192,4 +193,17 @@ public class ImageUtils {
         }
     }
     
+    
+    /**
+     * Returns the number of bytes of memory used by the raster of the specified
+     * image, or zero if image is null.
+     */
+    public static long getImageBytes(BufferedImage image) {
+        if (image == null) {
+            return 0;
+        }
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+
 }
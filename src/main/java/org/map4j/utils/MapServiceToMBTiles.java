@@ -1,8 +1,10 @@
 package org.map4j.utils;
 
-import java.io.ByteArrayOutputStream;
-
-import javax.imageio.ImageIO;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.map4j.coordinates.TBox;
 import org.map4j.coordinates.TCoordinate;
@@ -23,7 +25,7 @@ import org.map4j.utils.mbtiles.MBMetadata.TileSetType;
  * 
  * @author Joel Kozikowski
  */
-public class MapServiceToMBTiles implements Runnable, Tile.TileTopicListener {
+public class MapServiceToMBTiles implements Runnable {
 
     protected MapService mapService;
     protected MBTilesFile mbTiles;
@@ -63,19 +65,23 @@ public class MapServiceToMBTiles implements Runnable, Tile.TileTopicListener {
         System.out.println("Starting tile saver of " + tilesetDescription + " for zoom level " + zoom);
         startTime = System.currentTimeMillis();
         
-        Tile.broker.subscribe(Tile.TOPIC_LOADED, this);
-        
+        // Tiles are saved one at a time on a thread of their own, so writing them
+        // never holds up the tile loader's threads...
+        ExecutorService tileSaver = Executors.newSingleThreadExecutor();
         try {
             // Get a tile loader to load individual tiles
             ITileLoader tileLoader = mapService.getTileLoader();
-            int tileJobs = 0;
+            List<CompletableFuture<Void>> tileJobs = new ArrayList<>();
             
             // Prepare an MBTiles file to write to
             mbTiles = new MBTilesFile(mbtFileName);
             if (mbTiles.isNew()) {
                 System.out.println("Adding metadata to new MBTiles file");
                 MBMetadata.CoordinateBox bounds = new MBMetadata.CoordinateBox(downloadArea.w1.getLon(), downloadArea.w1.getLat(), downloadArea.w2.getLon(), downloadArea.w2.getLat());
-                MBMetadata meta = new MBMetadata(tilesetName, TileSetType.OVERLAY, "1", tilesetDescription, TileMimeType.PNG, bounds);
+                // Tiles are saved exactly as the map service sent them...
+                String extension = mapService.getImageExtension();
+                TileMimeType mimeType = ("jpg".equalsIgnoreCase(extension) || "jpeg".equalsIgnoreCase(extension)) ? TileMimeType.JPG : TileMimeType.PNG;
+                MBMetadata meta = new MBMetadata(tilesetName, TileSetType.OVERLAY, "1", tilesetDescription, mimeType, bounds);
                 mbTiles.updateMetadata(meta);
             }
 
@@ -90,12 +96,14 @@ public class MapServiceToMBTiles implements Runnable, Tile.TileTopicListener {
                     }
                     
                     TCoordinate tc = tileset.t1.getT(col, row);
-                    if (mbTiles.getTile(zoom, col, tc.getRowAsTMS()) == null) {
+                    if (!mbTiles.hasTile(zoom, col, tc.getRowAsTMS())) {
                         Tile tile = new Tile(tilesetName, tc);
+                        // Only the encoded image is saved, so it is never decoded
+                        tile.setDecodeOnLoad(false);
                         System.out.println("Requesting tile " + tc.getRequestPath());
                         ITileLoaderJob job = tileLoader.createTileLoaderJob(tile);
                         job.startTileLoad();
-                        tileJobs++;
+                        tileJobs.add(tile.getLoadFuture().thenAcceptAsync(this::saveTile, tileSaver));
                     }
                     else {
                         System.out.println("Skipping pre-existing tile " + zoom + "/" + col + " /" + row);
@@ -105,12 +113,12 @@ public class MapServiceToMBTiles implements Runnable, Tile.TileTopicListener {
             } // for row
             
             
-            while (tileLoader.hasOutstandingJobs()) {
-                System.out.println("Waiting for tile loader to complete job...");
-                Thread.sleep(2000);
-            }
+            System.out.println("Waiting for tile loader to complete " + tileJobs.size() + " jobs...");
+            CompletableFuture.allOf(tileJobs.toArray(new CompletableFuture<?>[tileJobs.size()]))
+                             .exceptionally(ex -> null)
+                             .join();
             
-            System.out.println("Download of zoom level " + zoom + " complete. Saved " + this.tileCount + " of " + tileJobs + " tiles.");
+            System.out.println("Download of zoom level " + zoom + " complete. Saved " + this.tileCount + " of " + tileJobs.size() + " tiles.");
             System.out.println("Runtime: " + ((System.currentTimeMillis() - startTime) / 1000) / 60.0 + " minutes.");
             mbTiles.updateMinZoom();
             mbTiles.updateMaxZoom();
@@ -119,30 +127,35 @@ public class MapServiceToMBTiles implements Runnable, Tile.TileTopicListener {
         catch (Exception ex) {
             ex.printStackTrace(System.err);
         }
+        finally {
+            tileSaver.shutdown();
+        }
     }
 
     
-    @Override
-    public void onPublish(String topic, Tile tile) {
-        if (topic.equals(Tile.TOPIC_LOADED)) {
-            TCoordinate coord = tile.coord;
-            try {
-                if (!tile.hasError() ) {
-                    System.out.println("Retrieved tile " + tile.coord.getRequestPath());
-                    ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                    ImageIO.write(tile.getImage(), "png", bos);
-                    mbTiles.addTile(bos.toByteArray(), coord.getZoom(), coord.getCol(), coord.getRowAsTMS());
-                    System.out.println("Saved MBTile " + tile.getCacheKey());
-                    this.tileCount++;
-                }
-                else {
-                    System.err.println("Error retrieving tile " + tile.coord.getRequestPath() + ": " + tile.getErrorMessage());
-                }
+    /**
+     * Saves a tile's encoded image, as it was downloaded, to the MBTiles file once its
+     * load has completed. This is called from a single tile saver thread, but calls are
+     * serialized here as well for subclasses that call it from elsewhere.
+     */
+    protected synchronized void saveTile(Tile tile) {
+        TCoordinate coord = tile.coord;
+        try {
+            byte[] encodedImage = tile.getEncodedImage();
+            if (!tile.hasError() && encodedImage != null) {
+                System.out.println("Retrieved tile " + tile.coord.getRequestPath());
+                mbTiles.addTile(encodedImage, coord.getZoom(), coord.getCol(), coord.getRowAsTMS());
+                System.out.println("Saved MBTile " + tile.getCacheKey());
+                this.tileCount++;
             }
-            catch (Exception e) {
-                e.printStackTrace(System.err);
+            else {
+                String message = tile.hasError() ? tile.getErrorMessage() : "no encoded image";
+                System.err.println("Error retrieving tile " + tile.coord.getRequestPath() + ": " + message);
             }
         }
+        catch (Exception e) {
+            e.printStackTrace(System.err);
+        }
     }
     
 }
@@ -0,0 +1,210 @@
+package org.map4j.utils;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.map4j.coordinates.TCoordinate;
+import org.map4j.loaders.Tile;
+import org.map4j.loaders.cache.ITileCache;
+import org.map4j.loaders.cache.MemoryTileCache;
+import org.map4j.loaders.cache.StripedTileCache;
+
+
+/**
+ * A command line utility that compares the multi-threaded throughput of the tile
+ * cache implementations. Each thread repeatedly looks up random tiles near a
+ * "hot spot" (as the loaders and renderers of a map do), adding the tile to
+ * the cache whenever it is missing.
+ * <p>Usage: TileCacheBenchmark [threads] [secondsPerRun] [cacheSize]
+ * <p>It can also compare the hit ratio of the cache with and without its admission
+ * filter by replaying a trace of tile requests. A trace is a text file with one
+ * "zoom/col/row" tile request per line, recorded from a pan/zoom session. Without
+ * a trace file, a synthetic session is generated.
+ * <p>Usage: TileCacheBenchmark hitratio [cacheSize] [traceFile]
+ *
+ * @author Joel Kozikowski
+ */
+public class TileCacheBenchmark {
+    
+    private static final String SOURCE_ID = "benchmark";
+    private static final int ZOOM = 12;
+    
+    
+    /**
+     * Runs the workload against the specified cache, returning the number of
+     * cache operations per second.
+     */
+    public static double measureThroughput(ITileCache cache, int threads, int seconds, int keySpan) throws InterruptedException {
+        AtomicLong operations = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        long[] endTime = new long[1];
+        List<Thread> workers = new ArrayList<>();
+        
+        for (int t = 0; t < threads; t++) {
+            final long seed = t;
+            Thread worker = new Thread(() -> {
+                Random rnd = new Random(seed);
+                TCoordinate coord = new TCoordinate(0, 0, ZOOM);
+                long ops = 0;
+                try {
+                    start.await();
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                while (System.nanoTime() < endTime[0]) {
+                    // Gaussian around the hot spot, like a map being panned around one area...
+                    coord.setCol(1000 + (int) (rnd.nextGaussian() * keySpan));
+                    coord.setRow(1000 + (int) (rnd.nextGaussian() * keySpan));
+                    if (cache.getTile(SOURCE_ID, coord) == null) {
+                        cache.addTile(new Tile(SOURCE_ID, coord));
+                    }
+                    ops++;
+                }
+                operations.addAndGet(ops);
+            });
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+        
+        long startTime = System.nanoTime();
+        endTime[0] = startTime + seconds * 1_000_000_000L;
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return operations.get() / ((System.nanoTime() - startTime) / 1e9);
+    }
+    
+    
+    /**
+     * Replays a trace of tile requests against the specified cache, adding each
+     * missing tile to it, and returns the fraction of requests that were hits.
+     */
+    public static double measureHitRatio(ITileCache cache, List<TCoordinate> trace) {
+        long hits = 0;
+        for (TCoordinate coord : trace) {
+            if (cache.getTile(SOURCE_ID, coord) != null) {
+                hits++;
+            }
+            else {
+                cache.addTile(new Tile(SOURCE_ID, coord));
+            }
+        }
+        return trace.isEmpty() ? 0 : (double) hits / trace.size();
+    }
+    
+    
+    /**
+     * Reads a trace of tile requests, one "zoom/col/row" request per line. Blank
+     * lines and lines starting with # are ignored.
+     */
+    public static List<TCoordinate> readTrace(String fileName) throws IOException {
+        List<TCoordinate> trace = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new FileReader(fileName))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split("/");
+                trace.add(new TCoordinate(Integer.parseInt(parts[1].trim()),
+                                          Integer.parseInt(parts[2].trim()),
+                                          Integer.parseInt(parts[0].trim())));
+            }
+        }
+        return trace;
+    }
+    
+    
+    /**
+     * Generates a synthetic pan/zoom session: a 5x5 grid of tiles that drifts
+     * around a home area and now and then zooms in or out, interrupted periodically
+     * by a sweep over tiles that are never requested again (e.g. a fast fling,
+     * or a bulk download sharing the cache).
+     */
+    public static List<TCoordinate> syntheticTrace(int requests, long seed) {
+        List<TCoordinate> trace = new ArrayList<>();
+        Random rnd = new Random(seed);
+        int zoom = ZOOM;
+        double col = 1000;
+        double row = 1000;
+        int sweepCol = 100000;
+        
+        while (trace.size() < requests) {
+            if (rnd.nextInt(50) == 0) {
+                // A sweep of one-time tiles...
+                for (int i = 0; i < 400; i++) {
+                    trace.add(new TCoordinate(sweepCol++, 50000, ZOOM));
+                }
+            }
+            
+            if (rnd.nextInt(20) == 0) {
+                int newZoom = Math.max(ZOOM - 2, Math.min(ZOOM + 2, zoom + (rnd.nextBoolean() ? 1 : -1)));
+                double scale = Math.pow(2, newZoom - zoom);
+                col *= scale;
+                row *= scale;
+                zoom = newZoom;
+            }
+            else {
+                // Drift, but stay near the home area
+                double home = 1000 * Math.pow(2, zoom - ZOOM);
+                col += rnd.nextGaussian() * 0.75 + (home - col) * 0.02;
+                row += rnd.nextGaussian() * 0.75 + (home - row) * 0.02;
+            }
+            
+            for (int r = -2; r <= 2; r++) {
+                for (int c = -2; c <= 2; c++) {
+                    trace.add(new TCoordinate((int) col + c, (int) row + r, zoom));
+                }
+            }
+        }
+        return trace;
+    }
+    
+    
+    private static void compareHitRatios(int cacheSize, String traceFile) throws IOException {
+        List<TCoordinate> trace = traceFile != null ? readTrace(traceFile) : syntheticTrace(500_000, 1);
+        
+        MemoryTileCache lru = new MemoryTileCache(cacheSize);
+        MemoryTileCache tinyLfu = new MemoryTileCache(cacheSize);
+        tinyLfu.setAdmissionFilter(true);
+        
+        System.out.println("Cache size " + cacheSize + ", " + trace.size() + " requests from " +
+                           (traceFile != null ? traceFile : "synthetic session"));
+        System.out.println(String.format("%-20s %6.2f%%", "LRU", measureHitRatio(lru, trace) * 100));
+        System.out.println(String.format("%-20s %6.2f%%  (%d tiles not admitted)", "W-TinyLFU",
+                           measureHitRatio(tinyLfu, trace) * 100, tinyLfu.getAdmissionRejections()));
+    }
+    
+    
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("hitratio")) {
+            compareHitRatios(args.length > 1 ? Integer.parseInt(args[1]) : 200,
+                             args.length > 2 ? args[2] : null);
+            return;
+        }
+        
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors() * 2;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int cacheSize = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        int keySpan = (int) Math.sqrt(cacheSize);
+        
+        System.out.println("Cache size " + cacheSize + ", " + seconds + " seconds per run");
+        System.out.println(String.format("%8s %20s %20s", "threads", "MemoryTileCache", "StripedTileCache"));
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            double memory = measureThroughput(new MemoryTileCache(cacheSize), threads, seconds, keySpan);
+            double striped = measureThroughput(new StripedTileCache(cacheSize), threads, seconds, keySpan);
+            System.out.println(String.format("%8d %14.0f ops/s %14.0f ops/s", threads, memory, striped));
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+package org.map4j.utils;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+/**
+ * Decodes encoded tile images (PNG, JPEG, GIF) into the integer pixel layouts Java2D
+ * draws fastest: TYPE_INT_RGB for opaque images, and TYPE_INT_ARGB_PRE for images with
+ * transparency. ImageIO.read() returns whatever type suits the encoded image (e.g. palette
+ * based PNGs or TYPE_3BYTE_BGR JPEGs), and drawing those onto the tile grid goes through
+ * Java2D's slower generic loops every time. Converting each tile once as it is decoded
+ * means every later draw onto a TYPE_INT_ARGB_PRE image (such as the tile grid) uses
+ * the fast loops.
+ * <p>Images are decoded into whatever type the reader prefers, then copied to the target
+ * type. Readers can decode straight into the integer layouts, but they write those pixel by
+ * pixel, which makes decoding slower than the extra copy is.
+ * <p>ImageReaders are kept in a small pool per format shared by all threads, so they
+ * are not created for every tile. Readers that do not fit in the pool are disposed.
+ *
+ * @author Joel Kozikowski
+ */
+public class TileDecoder {
+    
+    /**
+     * The image type tiles with transparency are decoded to, and the type
+     * images that tiles are drawn onto should be.
+     */
+    public static final int IMAGE_TYPE = BufferedImage.TYPE_INT_ARGB_PRE;
+    
+    /**
+     * The image type opaque tiles are decoded to
+     */
+    public static final int OPAQUE_IMAGE_TYPE = BufferedImage.TYPE_INT_RGB;
+    
+    /**
+     * The maximum number of idle readers kept for each format
+     */
+    private static final int MAX_POOLED_READERS = Runtime.getRuntime().availableProcessors();
+    
+    /**
+     * The idle readers of each format
+     */
+    private static final Map<String, Queue<ImageReader>> readerPool = new ConcurrentHashMap<>();
+    
+    
+    private TileDecoder() {
+    }
+    
+    
+    /**
+     * Decodes the specified encoded image into a new TYPE_INT_RGB or TYPE_INT_ARGB_PRE
+     * image, or returns null if the image is not in a format that can be read.
+     */
+    public static BufferedImage decode(byte[] bytes) throws IOException {
+        String format = getFormat(bytes);
+        ImageReader reader = (format != null) ? borrowReader(format) : null;
+        if (reader == null) {
+            return toImageType(ImageIO.read(new ByteArrayInputStream(bytes)));
+        }
+        
+        boolean reusable = false;
+        try (ImageInputStream input = new MemoryCacheImageInputStream(new ByteArrayInputStream(bytes))) {
+            reader.setInput(input, true, true);
+            BufferedImage decoded = reader.read(0, reader.getDefaultReadParam());
+            reusable = true;
+            return toImageType(decoded);
+        }
+        finally {
+            reader.setInput(null);
+            if (reusable) {
+                returnReader(format, reader);
+            }
+            else {
+                // A reader can be left in a bad state by a corrupt image, so it is not reused...
+                reader.dispose();
+            }
+        }
+    }
+    
+    
+    private static ImageReader borrowReader(String format) {
+        ImageReader reader = readerPool.computeIfAbsent(format, f -> new ArrayBlockingQueue<>(MAX_POOLED_READERS)).poll();
+        if (reader == null) {
+            Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName(format);
+            reader = readers.hasNext() ? readers.next() : null;
+        }
+        return reader;
+    }
+    
+    
+    private static void returnReader(String format, ImageReader reader) {
+        if (!readerPool.get(format).offer(reader)) {
+            reader.dispose();
+        }
+    }
+    
+    
+    /**
+     * Returns the specified image if it is already of the type it would be decoded to,
+     * otherwise a copy of it of that type. Null is returned if the image is null.
+     */
+    public static BufferedImage toImageType(BufferedImage image) {
+        if (image == null || image.getType() == getImageType(image)) {
+            return image;
+        }
+        return copyToImageType(image);
+    }
+    
+    
+    private static int getImageType(BufferedImage image) {
+        return image.getColorModel().getTransparency() == Transparency.OPAQUE ? OPAQUE_IMAGE_TYPE : IMAGE_TYPE;
+    }
+    
+    
+    private static BufferedImage copyToImageType(BufferedImage image) {
+        BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(), getImageType(image));
+        Graphics2D g = copy.createGraphics();
+        g.setComposite(AlphaComposite.Src);
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return copy;
+    }
+    
+    
+    /**
+     * Returns the ImageIO format name of the specified encoded image from its
+     * leading "magic" bytes, or null if it is not recognized.
+     */
+    private static String getFormat(byte[] bytes) {
+        if (bytes.length >= 8 && (bytes[0] & 0xff) == 0x89 && bytes[1] == 'P' && bytes[2] == 'N' && bytes[3] == 'G') {
+            return "png";
+        }
+        if (bytes.length >= 3 && (bytes[0] & 0xff) == 0xff && (bytes[1] & 0xff) == 0xd8 && (bytes[2] & 0xff) == 0xff) {
+            return "jpeg";
+        }
+        if (bytes.length >= 6 && bytes[0] == 'G' && bytes[1] == 'I' && bytes[2] == 'F') {
+            return "gif";
+        }
+        return null;
+    }
+
+}
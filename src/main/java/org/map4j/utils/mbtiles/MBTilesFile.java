@@ -13,9 +13,16 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.map4j.coordinates.TBox;
 import org.map4j.utils.ImageUtils;
 
 
@@ -23,18 +30,72 @@ import org.map4j.utils.ImageUtils;
  * Represents a file stored according to the MBTiles specification.
  * 
  * Code here is borrowed and reworked from the org.imintel.mbtiles4j project
+ * <p>A file opened with MBTilesReadOptions is read-only. Tile reads in that mode
+ * use a small pool of connections (one per reading thread at a time) with reusable
+ * prepared statements, so many threads can read the file in parallel.
  * 
  * @author Joel Kozikowski
  *
  */
 public class MBTilesFile {
 
+    private static final String SQL_GET_TILE = "SELECT tile_data FROM tiles WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?";
+    private static final String SQL_GET_TILES = "SELECT tile_column, tile_row, tile_data FROM tiles WHERE zoom_level = ? AND tile_column BETWEEN ? AND ? AND tile_row BETWEEN ? AND ?";
+    private static final String SQL_GET_TILE_KEYS = "SELECT zoom_level, tile_column, tile_row FROM tiles";
+    
     Connection connection;
     private File file;
     private boolean newFile = false;
     MBMetadata mbMeta = null;
+    
+    private volatile boolean hasExpiresTable = false;
+    private volatile TileExistenceIndex existenceIndex;
+    private List<int[]> addedDuringScan;
 
+    private final MBTilesReadOptions readOptions;
+    private final LinkedBlockingDeque<TileReader> idleReaders = new LinkedBlockingDeque<>();
+    private final List<TileReader> allReaders = new CopyOnWriteArrayList<>();
+    private final AtomicInteger readerCount = new AtomicInteger();
+    
+    
+    /**
+     * A pooled read-only connection and the prepared statements it reuses.
+     */
+    private static final class TileReader {
+        final Connection conn;
+        PreparedStatement getTile;
+        PreparedStatement getTiles;
+        
+        TileReader(Connection conn) {
+            this.conn = conn;
+        }
+        
+        PreparedStatement getTileStatement() throws SQLException {
+            if (getTile == null) {
+                getTile = conn.prepareStatement(SQL_GET_TILE);
+            }
+            return getTile;
+        }
+        
+        PreparedStatement getTilesStatement() throws SQLException {
+            if (getTiles == null) {
+                getTiles = conn.prepareStatement(SQL_GET_TILES);
+            }
+            return getTiles;
+        }
+        
+        void close() {
+            try {
+                conn.close();
+            }
+            catch (SQLException e) {
+            }
+        }
+    }
+    
+    
     public MBTilesFile(File f) {
+        this.readOptions = null;
         try {
             file = f;
             this.newFile = !f.exists();
@@ -50,6 +111,7 @@ public class MBTilesFile {
 
     
     public MBTilesFile() {
+        this.readOptions = null;
         try {
             this.newFile = true;
             file = File.createTempFile(UUID.randomUUID().toString(), ".mbtiles");
@@ -63,8 +125,9 @@ public class MBTilesFile {
 
     
     public MBTilesFile(String name) {
+        this.readOptions = null;
         try {
-            File file = new File(name);
+            file = new File(name);
             this.newFile = file.createNewFile();
             establishConnection(file);
             if (this.newFile) {
@@ -75,6 +138,27 @@ public class MBTilesFile {
             throw new MBTilesException(e);
         }
     }
+    
+    
+    /**
+     * Opens an existing MBTiles file in read-only mode. Attempts to add tiles or
+     * update metadata will throw an MBTilesException.
+     * @param f The MBTiles file to open. It must already exist.
+     * @param readOptions The options used to configure the connections that read the file
+     */
+    public MBTilesFile(File f, MBTilesReadOptions readOptions) {
+        if (!f.exists()) {
+            throw new MBTilesException("MBTiles file " + f.getAbsolutePath() + " does not exist");
+        }
+        this.readOptions = readOptions;
+        this.file = f;
+        try {
+            connection = openReadOnlyConnection();
+        }
+        catch (Exception e) {
+            throw new MBTilesException(e);
+        }
+    }
 
     
     @Override
@@ -93,6 +177,14 @@ public class MBTilesFile {
     }
     
     
+    /**
+     * Returns TRUE if this file was opened in read-only mode.
+     */
+    public boolean isReadOnly() {
+        return this.readOptions != null;
+    }
+    
+    
     
     private void init() throws SQLException {
         createTable("metadata", "(name text,value text)", "CREATE UNIQUE INDEX name on metadata (name);");
@@ -129,6 +221,7 @@ public class MBTilesFile {
      * Adds or updates the specified metadata to the file
      */
     public void updateMetadata(MBMetadata ent) throws MBTilesException {
+        checkWritable();
         for (Map.Entry<String, String> metadata : ent.getRequiredKeyValuePairs()) {
             String schema = "(name,value)";
             String values = "('" + metadata.getKey() + "','" + metadata.getValue() + "')";
@@ -191,16 +284,29 @@ public class MBTilesFile {
 
     
     
+    /**
+     * Adds the specified tile to the file, replacing the tile already stored at
+     * that location (if any).
+     */
     public void addTile(byte[] bytes, long zoom, long column, long row) throws MBTilesException {
-        try (PreparedStatement stmt = connection.prepareStatement("INSERT INTO tiles (zoom_level,tile_column,tile_row,tile_data) VALUES(?,?,?,?)")) {
-            stmt.setInt(1, (int) zoom);
-            stmt.setInt(2, (int) column);
-            stmt.setInt(3, (int) row);
-            stmt.setBytes(4, bytes);
-            stmt.execute();
-        } 
-        catch (SQLException e) {
-            throw new MBTilesException("Add Tile to MBTiles file failed", e);
+        checkWritable();
+        synchronized (connection) {
+            try (PreparedStatement stmt = connection.prepareStatement("INSERT OR REPLACE INTO tiles (zoom_level,tile_column,tile_row,tile_data) VALUES(?,?,?,?)")) {
+                stmt.setInt(1, (int) zoom);
+                stmt.setInt(2, (int) column);
+                stmt.setInt(3, (int) row);
+                stmt.setBytes(4, bytes);
+                stmt.execute();
+                if (existenceIndex != null) {
+                    existenceIndex.add((int) zoom, (int) column, (int) row);
+                }
+                else if (addedDuringScan != null) {
+                    addedDuringScan.add(new int[] { (int) zoom, (int) column, (int) row });
+                }
+            } 
+            catch (SQLException e) {
+                throw new MBTilesException("Add Tile to MBTiles file failed", e);
+            }
         }
     }
 
@@ -220,7 +326,7 @@ public class MBTilesFile {
      * Commits any cached metadata back to the file.
      */
     public void flush() throws MBTilesException {
-        if (mbMeta != null && mbMeta.isDirty()) {
+        if (mbMeta != null && mbMeta.isDirty() && !isReadOnly()) {
             this.updateMetadata(mbMeta);
         }
     }
@@ -234,6 +340,11 @@ public class MBTilesFile {
     public void close() throws MBTilesException {
         try {
             this.flush();
+            for (TileReader reader : allReaders) {
+                reader.close();
+            }
+            allReaders.clear();
+            idleReaders.clear();
             connection.close();
         } 
         catch (SQLException e) {
@@ -268,21 +379,269 @@ public class MBTilesFile {
      * @throws MBTilesException
      */
     public MBTile getTile(int zoom, int column, int row) throws MBTilesException {
-        String sql = String.format("SELECT tile_data FROM tiles WHERE zoom_level = %d AND tile_column = %d AND tile_row = %d", zoom, column, row);
+        try {
+            if (isReadOnly()) {
+                TileReader reader = borrowReader();
+                try {
+                    return readTile(reader.getTileStatement(), zoom, column, row);
+                }
+                finally {
+                    idleReaders.offerFirst(reader);
+                }
+            }
+            else {
+                // All threads share the one read/write connection...
+                synchronized (connection) {
+                    try (PreparedStatement stmt = connection.prepareStatement(SQL_GET_TILE)) {
+                        return readTile(stmt, zoom, column, row);
+                    }
+                }
+            }
+        } 
+        catch (Exception e) {
+            throw new MBTilesException(String.format("Could not get Tile for z:%d, column:%d, row:%d", zoom, column, row), e);
+        }
+    }
+    
+    
+    /**
+     * Returns all of the tiles at the specified zoom level whose column and row fall within
+     * the specified ranges (inclusive). The tiles are retrieved with a single range query on
+     * the tile index, so this is much faster than calling getTile() for each tile. Tiles that
+     * do not exist in the file are simply not included in the list.
+     * @throws MBTilesException
+     */
+    public List<MBTile> getTiles(int zoom, int minColumn, int minRow, int maxColumn, int maxRow) throws MBTilesException {
+        try {
+            if (isReadOnly()) {
+                TileReader reader = borrowReader();
+                try {
+                    return readTiles(reader.getTilesStatement(), zoom, minColumn, minRow, maxColumn, maxRow);
+                }
+                finally {
+                    idleReaders.offerFirst(reader);
+                }
+            }
+            else {
+                synchronized (connection) {
+                    try (PreparedStatement stmt = connection.prepareStatement(SQL_GET_TILES)) {
+                        return readTiles(stmt, zoom, minColumn, minRow, maxColumn, maxRow);
+                    }
+                }
+            }
+        } 
+        catch (Exception e) {
+            throw new MBTilesException(String.format("Could not get Tiles for z:%d, columns:%d-%d, rows:%d-%d", zoom, minColumn, maxColumn, minRow, maxRow), e);
+        }
+    }
         
-        try (Statement stmt = connection.createStatement()) {
-            ResultSet resultSet = stmt.executeQuery(sql);
+    
+    private MBTile readTile(PreparedStatement stmt, int zoom, int column, int row) throws SQLException, IOException {
+        stmt.setInt(1, zoom);
+        stmt.setInt(2, column);
+        stmt.setInt(3, row);
+        try (ResultSet resultSet = stmt.executeQuery()) {
             if (resultSet.next()) {
-                byte[] bytes = toByteArray(resultSet.getBinaryStream("tile_data"));
+                byte[] bytes = toByteArray(resultSet.getBinaryStream(1));
                 return new MBTile(zoom, column, row, bytes);
             }
             else {
                 return null;
             }
-        } 
+        }
+    }
+    
+    
+    private List<MBTile> readTiles(PreparedStatement stmt, int zoom, int minColumn, int minRow, int maxColumn, int maxRow) throws SQLException, IOException {
+        stmt.setInt(1, zoom);
+        stmt.setInt(2, minColumn);
+        stmt.setInt(3, maxColumn);
+        stmt.setInt(4, minRow);
+        stmt.setInt(5, maxRow);
+        try (ResultSet resultSet = stmt.executeQuery()) {
+            List<MBTile> tiles = new ArrayList<>((maxColumn - minColumn + 1) * (maxRow - minRow + 1));
+            while (resultSet.next()) {
+                int column = resultSet.getInt(1);
+                int row = resultSet.getInt(2);
+                byte[] bytes = toByteArray(resultSet.getBinaryStream(3));
+                tiles.add(new MBTile(zoom, column, row, bytes));
+            }
+            return tiles;
+        }
+    }
+    
+    
+    /**
+     * Returns all of the tiles in the specified tile box. Per the MBTiles specification,
+     * the rows of the tiles returned are TMS rows.
+     * @see #getTiles(int, int, int, int, int)
+     */
+    public List<MBTile> getTiles(TBox box) throws MBTilesException {
+        int row1 = box.t1.getRowAsTMS();
+        int row2 = box.t2.getRowAsTMS();
+        return getTiles(box.getZoom(), box.t1.getCol(), Math.min(row1, row2), box.t2.getCol(), Math.max(row1, row2));
+    }
+    
+    
+    /**
+     * Records the time (in milliseconds since the epoch) the tile at the specified location
+     * expires. This is not part of the MBTiles specification: expiration times are kept in
+     * a separate "tile_expires" table that is created the first time one is recorded.
+     */
+    public void setTileExpiration(int zoom, int column, int row, long expires) throws MBTilesException {
+        checkWritable();
+        synchronized (connection) {
+            try {
+                if (!hasExpiresTable) {
+                    createTable("tile_expires", "(zoom_level integer, tile_column integer, tile_row integer, expires integer)", "CREATE UNIQUE INDEX tile_expires_index on tile_expires (zoom_level, tile_column, tile_row);");
+                    hasExpiresTable = true;
+                }
+                try (PreparedStatement stmt = connection.prepareStatement("INSERT OR REPLACE INTO tile_expires (zoom_level,tile_column,tile_row,expires) VALUES(?,?,?,?)")) {
+                    stmt.setInt(1, zoom);
+                    stmt.setInt(2, column);
+                    stmt.setInt(3, row);
+                    stmt.setLong(4, expires);
+                    stmt.execute();
+                }
+            }
+            catch (SQLException e) {
+                throw new MBTilesException(String.format("Could not set expiration for z:%d, column:%d, row:%d", zoom, column, row), e);
+            }
+        }
+    }
+    
+    
+    /**
+     * Returns the time (in milliseconds since the epoch) the tile at the specified location
+     * expires, or zero if no expiration time has been recorded for it.
+     * @see #setTileExpiration(int, int, int, long)
+     */
+    public long getTileExpiration(int zoom, int column, int row) throws MBTilesException {
+        synchronized (connection) {
+            try {
+                if (!hasExpiresTable) {
+                    if (!tableExists("tile_expires")) {
+                        return 0;
+                    }
+                    hasExpiresTable = true;
+                }
+                try (PreparedStatement stmt = connection.prepareStatement("SELECT expires FROM tile_expires WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?")) {
+                    stmt.setInt(1, zoom);
+                    stmt.setInt(2, column);
+                    stmt.setInt(3, row);
+                    try (ResultSet resultSet = stmt.executeQuery()) {
+                        return resultSet.next() ? resultSet.getLong(1) : 0;
+                    }
+                }
+            }
+            catch (SQLException e) {
+                throw new MBTilesException(String.format("Could not get expiration for z:%d, column:%d, row:%d", zoom, column, row), e);
+            }
+        }
+    }
+    
+    
+    /**
+     * Returns TRUE if a tile exists at the specified location (using the same TMS row
+     * numbering as getTile()). The check is answered from the file's existence index
+     * (see getExistenceIndex()), so no tile data is read.
+     * @throws MBTilesException
+     */
+    public boolean hasTile(int zoom, int column, int row) throws MBTilesException {
+        return getExistenceIndex().contains(zoom, column, row);
+    }
+    
+    
+    /**
+     * Returns an index of every tile in this file, building it with a single scan of the
+     * tile keys (no tile data is read) the first time it is requested. Tiles added through
+     * this object afterwards are added to the index as well.
+     * @throws MBTilesException
+     */
+    public TileExistenceIndex getExistenceIndex() throws MBTilesException {
+        TileExistenceIndex index = existenceIndex;
+        if (index == null) {
+            synchronized (this) {
+                index = existenceIndex;
+                if (index == null) {
+                    index = buildExistenceIndex();
+                    existenceIndex = index;
+                }
+            }
+        }
+        return index;
+    }
+    
+    
+    /**
+     * Returns TRUE if the existence index has already been built, so that hasTile()
+     * will not have to wait for the tile keys to be scanned.
+     */
+    public boolean hasExistenceIndex() {
+        return existenceIndex != null;
+    }
+    
+    
+    private TileExistenceIndex buildExistenceIndex() throws MBTilesException {
+        try {
+            if (isReadOnly()) {
+                TileReader reader = borrowReader();
+                try {
+                    return scanTileKeys(reader.conn);
+                }
+                finally {
+                    idleReaders.offerFirst(reader);
+                }
+            }
+            else {
+                return buildWritableExistenceIndex();
+            }
+        }
         catch (Exception e) {
-            throw new MBTilesException(String.format("Could not get Tile for z:%d, column:%d, row:%d", zoom, column, row), e);
+            throw new MBTilesException("Could not build tile index of " + file.getName(), e);
+        }
+    }
+    
+    
+    /**
+     * Scans the tile keys of a file open for writing on a connection of its own, so tiles
+     * can still be read and added through the main connection while the scan runs. Tiles
+     * added during the scan (which it may or may not have seen) are merged in afterwards.
+     */
+    private TileExistenceIndex buildWritableExistenceIndex() throws Exception {
+        synchronized (connection) {
+            addedDuringScan = new ArrayList<>();
+        }
+        try {
+            TileExistenceIndex index;
+            try (Connection scanConnection = openScanConnection()) {
+                index = scanTileKeys(scanConnection);
+            }
+            synchronized (connection) {
+                for (int[] tile : addedDuringScan) {
+                    index.add(tile[0], tile[1], tile[2]);
+                }
+                existenceIndex = index;
+                return index;
+            }
+        }
+        finally {
+            synchronized (connection) {
+                addedDuringScan = null;
+            }
+        }
+    }
+    
+    
+    private TileExistenceIndex scanTileKeys(Connection conn) throws SQLException {
+        TileExistenceIndex index = new TileExistenceIndex();
+        try (Statement stmt = conn.createStatement();
+             ResultSet resultSet = stmt.executeQuery(SQL_GET_TILE_KEYS)) {
+            while (resultSet.next()) {
+                index.add(resultSet.getInt(1), resultSet.getInt(2), resultSet.getInt(3));
+            }
         }
+        return index;
     }
     
     
@@ -370,6 +729,71 @@ public class MBTilesFile {
     }
     
     
+    /**
+     * Returns an idle read connection from the pool, opening a new one if the pool
+     * has not yet reached its maximum size. Otherwise, waits for one to be returned.
+     */
+    private TileReader borrowReader() throws Exception {
+        TileReader reader = idleReaders.pollFirst();
+        if (reader == null) {
+            if (readerCount.incrementAndGet() <= readOptions.getPoolSize()) {
+                try {
+                    reader = new TileReader(openReadOnlyConnection());
+                }
+                catch (Exception e) {
+                    // Give the slot back so a later borrow can try again...
+                    readerCount.decrementAndGet();
+                    throw e;
+                }
+                allReaders.add(reader);
+            }
+            else {
+                readerCount.decrementAndGet();
+                reader = idleReaders.takeFirst();
+            }
+        }
+        return reader;
+    }
+    
+    
+    private Connection openReadOnlyConnection() throws Exception {
+        Class.forName("org.sqlite.JDBC");
+        Properties props = new Properties();
+        props.setProperty("open_mode", "1"); // SQLITE_OPEN_READONLY
+        Connection conn = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath(), props);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA mmap_size = " + readOptions.getMmapSize());
+            stmt.execute("PRAGMA cache_size = " + readOptions.getCacheSize());
+            stmt.execute("PRAGMA query_only = " + (readOptions.isQueryOnly() ? 1 : 0));
+            stmt.execute("PRAGMA locking_mode = " + readOptions.getLockingMode().name());
+        }
+        catch (SQLException e) {
+            conn.close();
+            throw e;
+        }
+        return conn;
+    }
+    
+    
+    /**
+     * Opens a read-only connection to a file that is open for writing, for
+     * long running reads that should not tie up the main connection.
+     */
+    private Connection openScanConnection() throws Exception {
+        Class.forName("org.sqlite.JDBC");
+        Properties props = new Properties();
+        props.setProperty("open_mode", "1"); // SQLITE_OPEN_READONLY
+        return DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath(), props);
+    }
+    
+    
+    private void checkWritable() throws MBTilesException {
+        if (isReadOnly()) {
+            throw new MBTilesException("MBTiles file " + file.getName() + " was opened read-only");
+        }
+    }
+    
+    
     private Connection establishConnection(File file) throws Exception {
         Class.forName("org.sqlite.JDBC");
         connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
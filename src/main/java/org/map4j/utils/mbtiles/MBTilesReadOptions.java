@@ -0,0 +1,100 @@
+package org.map4j.utils.mbtiles;
+
+/**
+ * The options used when an MBTilesFile is opened in read-only mode. Each reading
+ * thread borrows one of a small pool of connections, each of which is configured with
+ * the SQLite PRAGMAs specified here.
+ *
+ * @author Joel Kozikowski
+ */
+public class MBTilesReadOptions {
+    
+    /**
+     * The SQLite locking modes a read connection can use.
+     */
+    public enum LockingMode {
+        NORMAL,
+        EXCLUSIVE
+    };
+    
+    private int poolSize = 4;
+    private long mmapSize = 256L * 1024L * 1024L;
+    private int cacheSize = -8192;
+    private boolean queryOnly = true;
+    private LockingMode lockingMode = LockingMode.NORMAL;
+    
+    
+    public MBTilesReadOptions() {
+    }
+    
+    
+    /**
+     * Returns the maximum number of connections that will be opened to read
+     * the file. Threads that need a connection when all of them are in use will wait.
+     */
+    public int getPoolSize() {
+        return poolSize;
+    }
+    
+    
+    public void setPoolSize(int poolSize) {
+        this.poolSize = Math.max(1, poolSize);
+    }
+    
+    
+    /**
+     * Returns the value of "PRAGMA mmap_size", the maximum number of bytes of the file
+     * that SQLite will access via memory mapped I/O rather than read() calls. Zero
+     * disables memory mapping.
+     */
+    public long getMmapSize() {
+        return mmapSize;
+    }
+    
+    
+    public void setMmapSize(long mmapSize) {
+        this.mmapSize = mmapSize;
+    }
+    
+    
+    /**
+     * Returns the value of "PRAGMA cache_size" for each connection. Positive values are
+     * a number of pages, negative values are a number of kibibytes.
+     */
+    public int getCacheSize() {
+        return cacheSize;
+    }
+    
+    
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+    
+    
+    /**
+     * Returns the value of "PRAGMA query_only"
+     */
+    public boolean isQueryOnly() {
+        return queryOnly;
+    }
+    
+    
+    public void setQueryOnly(boolean queryOnly) {
+        this.queryOnly = queryOnly;
+    }
+    
+    
+    /**
+     * Returns the value of "PRAGMA locking_mode". EXCLUSIVE avoids re-acquiring the
+     * file lock on every read, but other processes will not be able to write to the file.
+     */
+    public LockingMode getLockingMode() {
+        return lockingMode;
+    }
+    
+    
+    public void setLockingMode(LockingMode lockingMode) {
+        this.lockingMode = lockingMode;
+    }
+
+}
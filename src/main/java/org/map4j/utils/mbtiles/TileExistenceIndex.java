@@ -0,0 +1,247 @@
+package org.map4j.utils.mbtiles;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A compact in-memory index of which tiles exist in a tile set, so a tile can be checked
+ * for without a database query. Tiles are grouped into chunks of 256x256 tiles of the same
+ * zoom level (in the manner of a roaring bitmap). A chunk with only a few tiles holds a
+ * sorted array of their positions within the chunk, and switches to a 65536 bit bitmap
+ * (8 KB) once it holds more than ARRAY_LIMIT tiles. Sparse tile sets (e.g. a coast line)
+ * therefore cost about two bytes per tile, and dense ones at most one bit per tile.
+ * <p>Columns and rows are used as-is, so the index uses whichever row numbering
+ * (TMS or XYZ) the tiles were added with.
+ *
+ * @author Joel Kozikowski
+ */
+public class TileExistenceIndex {
+    
+    private static final int CHUNK_BITS = 8;
+    private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+    
+    /**
+     * The number of tiles a chunk holds as an array before it is switched to a
+     * bitmap. Above this, the array would take more memory than the bitmap.
+     */
+    static final int ARRAY_LIMIT = 4096;
+    
+    /**
+     * The tiles of one 256x256 block of tiles
+     */
+    private static final class Chunk {
+        char[] positions = new char[4];
+        long[] bitmap;
+        int count;
+        
+        boolean contains(int pos) {
+            if (bitmap != null) {
+                return (bitmap[pos >>> 6] & (1L << pos)) != 0;
+            }
+            return Arrays.binarySearch(positions, 0, count, (char) pos) >= 0;
+        }
+        
+        boolean add(int pos) {
+            if (bitmap != null) {
+                long bit = 1L << pos;
+                if ((bitmap[pos >>> 6] & bit) != 0) {
+                    return false;
+                }
+                bitmap[pos >>> 6] |= bit;
+                count++;
+                return true;
+            }
+            
+            int i;
+            if (count == 0 || positions[count - 1] < pos) {
+                // Tiles are usually added in order, so check the end first
+                i = count;
+            }
+            else {
+                i = Arrays.binarySearch(positions, 0, count, (char) pos);
+                if (i >= 0) {
+                    return false;
+                }
+                i = -(i + 1);
+            }
+            if (count == ARRAY_LIMIT) {
+                toBitmap();
+                return add(pos);
+            }
+            if (count == positions.length) {
+                positions = Arrays.copyOf(positions, Math.min(ARRAY_LIMIT, count * 2));
+            }
+            System.arraycopy(positions, i, positions, i + 1, count - i);
+            positions[i] = (char) pos;
+            count++;
+            return true;
+        }
+        
+        boolean remove(int pos) {
+            if (bitmap != null) {
+                long bit = 1L << pos;
+                if ((bitmap[pos >>> 6] & bit) == 0) {
+                    return false;
+                }
+                bitmap[pos >>> 6] &= ~bit;
+                count--;
+                return true;
+            }
+            int i = Arrays.binarySearch(positions, 0, count, (char) pos);
+            if (i < 0) {
+                return false;
+            }
+            System.arraycopy(positions, i + 1, positions, i, count - i - 1);
+            count--;
+            return true;
+        }
+        
+        private void toBitmap() {
+            bitmap = new long[(1 << (CHUNK_BITS * 2)) / 64];
+            for (int i = 0; i < count; i++) {
+                int pos = positions[i];
+                bitmap[pos >>> 6] |= 1L << pos;
+            }
+            positions = null;
+        }
+    }
+    
+    private final Map<Long, Chunk> chunks = new HashMap<>();
+    private final int[] zoomCounts = new int[32];
+    
+    
+    /**
+     * Returns TRUE if the specified tile is in the index.
+     */
+    public synchronized boolean contains(int zoom, int column, int row) {
+        if (!isValid(zoom, column, row)) {
+            return false;
+        }
+        Chunk chunk = chunks.get(chunkKey(zoom, column, row));
+        return chunk != null && chunk.contains(position(column, row));
+    }
+    
+    
+    /**
+     * Adds the specified tile to the index.
+     * @return TRUE if the tile was not already in the index
+     */
+    public synchronized boolean add(int zoom, int column, int row) {
+        if (!isValid(zoom, column, row)) {
+            return false;
+        }
+        Chunk chunk = chunks.computeIfAbsent(chunkKey(zoom, column, row), k -> new Chunk());
+        if (chunk.add(position(column, row))) {
+            zoomCounts[zoom]++;
+            return true;
+        }
+        return false;
+    }
+    
+    
+    /**
+     * Removes the specified tile from the index.
+     * @return TRUE if the tile was in the index
+     */
+    public synchronized boolean remove(int zoom, int column, int row) {
+        if (!isValid(zoom, column, row)) {
+            return false;
+        }
+        Long key = chunkKey(zoom, column, row);
+        Chunk chunk = chunks.get(key);
+        if (chunk != null && chunk.remove(position(column, row))) {
+            zoomCounts[zoom]--;
+            if (chunk.count == 0) {
+                chunks.remove(key);
+            }
+            return true;
+        }
+        return false;
+    }
+    
+    
+    /**
+     * Returns the number of tiles in the index at the specified zoom level.
+     */
+    public synchronized int getTileCount(int zoom) {
+        return (zoom >= 0 && zoom < zoomCounts.length) ? zoomCounts[zoom] : 0;
+    }
+    
+    
+    /**
+     * Returns the number of tiles in the index at the specified zoom level whose column
+     * and row fall within the specified ranges (inclusive), e.g. to find how much of an
+     * area a tile set covers. Chunks entirely inside the range are counted without
+     * looking at their tiles.
+     */
+    public synchronized int getTileCount(int zoom, int minColumn, int minRow, int maxColumn, int maxRow) {
+        if (zoom < 0 || zoom >= zoomCounts.length || zoomCounts[zoom] == 0) {
+            return 0;
+        }
+        int total = 0;
+        minColumn = Math.max(0, minColumn);
+        minRow = Math.max(0, minRow);
+        for (int chunkCol = minColumn >> CHUNK_BITS; chunkCol <= maxColumn >> CHUNK_BITS; chunkCol++) {
+            for (int chunkRow = minRow >> CHUNK_BITS; chunkRow <= maxRow >> CHUNK_BITS; chunkRow++) {
+                Chunk chunk = chunks.get(chunkKey(zoom, chunkCol << CHUNK_BITS, chunkRow << CHUNK_BITS));
+                if (chunk == null) {
+                    continue;
+                }
+                int col0 = chunkCol << CHUNK_BITS;
+                int row0 = chunkRow << CHUNK_BITS;
+                int c1 = Math.max(minColumn, col0) - col0;
+                int c2 = Math.min(maxColumn, col0 + CHUNK_MASK) - col0;
+                int r1 = Math.max(minRow, row0) - row0;
+                int r2 = Math.min(maxRow, row0 + CHUNK_MASK) - row0;
+                if (c1 == 0 && r1 == 0 && c2 == CHUNK_MASK && r2 == CHUNK_MASK) {
+                    total += chunk.count;
+                }
+                else {
+                    for (int c = c1; c <= c2; c++) {
+                        for (int r = r1; r <= r2; r++) {
+                            if (chunk.contains((c << CHUNK_BITS) | r)) {
+                                total++;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return total;
+    }
+    
+    
+    /**
+     * Returns the total number of tiles in the index.
+     */
+    public synchronized long size() {
+        long total = 0;
+        for (int count : zoomCounts) {
+            total += count;
+        }
+        return total;
+    }
+    
+    
+    public synchronized void clear() {
+        chunks.clear();
+        Arrays.fill(zoomCounts, 0);
+    }
+    
+    
+    private static boolean isValid(int zoom, int column, int row) {
+        return zoom >= 0 && zoom < 32 && column >= 0 && row >= 0;
+    }
+    
+    
+    private static long chunkKey(int zoom, int column, int row) {
+        return ((long) zoom << 56) | ((long) (column >>> CHUNK_BITS) << 28) | (row >>> CHUNK_BITS);
+    }
+    
+    
+    private static int position(int column, int row) {
+        return ((column & CHUNK_MASK) << CHUNK_BITS) | (row & CHUNK_MASK);
+    }
+
+}
@@ -0,0 +1,71 @@
+package org.map4j.loaders;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.map4j.coordinates.TCoordinate;
+
+/**
+ * Checks that tile keys unpack to the values they were packed from, including
+ * at the smallest and largest zoom levels a key supports.
+ *
+ * @author Joel Kozikowski
+ */
+public class TileKeyTest {
+
+    @Test
+    public void roundTripsAtZoomZero() {
+        assertRoundTrip(TileKey.getSourceIndex("TileKeyTest"), 0, 0, 0);
+    }
+
+
+    @Test
+    public void roundTripsAtMaxZoom() {
+        int last = (1 << TileKey.MAX_ZOOM) - 1;
+        int source = TileKey.getSourceIndex("TileKeyTest");
+        assertRoundTrip(source, TileKey.MAX_ZOOM, 0, 0);
+        assertRoundTrip(source, TileKey.MAX_ZOOM, last, last);
+        assertRoundTrip(source, TileKey.MAX_ZOOM, last, 0);
+        assertRoundTrip(source, TileKey.MAX_ZOOM, 0, last);
+    }
+
+
+    @Test
+    public void roundTripsLargestSourceIndex() {
+        int last = (1 << TileKey.MAX_ZOOM) - 1;
+        assertRoundTrip(TileKey.MAX_SOURCES - 1, TileKey.MAX_ZOOM, last, last);
+    }
+
+
+    @Test
+    public void keyOfCoordinateMatchesPack() {
+        TCoordinate coord = new TCoordinate(5, 9, 4);
+        long key = TileKey.of("TileKeyTest", coord);
+        assertEquals("TileKeyTest", TileKey.getSourceId(key));
+        assertEquals(4, TileKey.getZoom(key));
+        assertEquals(5, TileKey.getCol(key));
+        assertEquals(coord.getRowAsXYZ(), TileKey.getRowAsXYZ(key));
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZoomAboveMax() {
+        TileKey.pack(0, TileKey.MAX_ZOOM + 1, 0, 0);
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeZoom() {
+        TileKey.pack(0, -1, 0, 0);
+    }
+
+
+    private static void assertRoundTrip(int sourceIndex, int zoom, int col, int rowXYZ) {
+        long key = TileKey.pack(sourceIndex, zoom, col, rowXYZ);
+        assertEquals(sourceIndex, TileKey.getSourceIndex(key));
+        assertEquals(zoom, TileKey.getZoom(key));
+        assertEquals(col, TileKey.getCol(key));
+        assertEquals(rowXYZ, TileKey.getRowAsXYZ(key));
+    }
+
+}
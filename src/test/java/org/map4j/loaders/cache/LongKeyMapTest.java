@@ -0,0 +1,110 @@
+package org.map4j.loaders.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks LongKeyMap against a HashMap, with particular attention to removals
+ * from probe sequences that wrap around the end of the table.
+ *
+ * @author Joel Kozikowski
+ */
+public class LongKeyMapTest {
+
+    /** The table size of the maps created by newMap() */
+    private static final int CAPACITY = 16;
+
+
+    @Test
+    public void matchesHashMapUnderRandomOperations() {
+        Random random = new Random(42);
+        LongKeyMap<Long> map = new LongKeyMap<>();
+        Map<Long, Long> expected = new HashMap<>();
+
+        for (int i = 0; i < 200_000; i++) {
+            // A small key range so that keys are often removed and re-added...
+            long key = random.nextInt(512) * 0x100000001L;
+            Long value = (long) i;
+            switch (random.nextInt(3)) {
+                case 0:
+                    assertEquals("put " + key, expected.put(key, value), map.put(key, value));
+                    break;
+                case 1:
+                    assertEquals("remove " + key, expected.remove(key), map.remove(key));
+                    break;
+                default:
+                    assertEquals("get " + key, expected.get(key), map.get(key));
+                    break;
+            }
+            assertEquals(expected.size(), map.size());
+        }
+
+        for (Map.Entry<Long, Long> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+    }
+
+
+    @Test
+    public void removeKeepsWrappedProbeSequenceReachable() {
+        List<Long> lastSlotKeys = keysWithHome(CAPACITY - 1, 3);
+        List<Long> firstSlotKeys = keysWithHome(0, 1);
+        long a = lastSlotKeys.get(0);
+        long b = firstSlotKeys.get(0);
+        long c = lastSlotKeys.get(1);
+        long d = lastSlotKeys.get(2);
+
+        // A sits in its home (the last slot), B in its home (slot 0), and C and D
+        // wrap around past B to slots 1 and 2...
+        LongKeyMap<Long> map = newMap();
+        map.put(a, a);
+        map.put(b, b);
+        map.put(c, c);
+        map.put(d, d);
+
+        // Removing A must move C back into the last slot across the wrap, but leave B in its home
+        assertEquals(Long.valueOf(a), map.remove(a));
+        assertNull(map.get(a));
+        assertEquals(Long.valueOf(b), map.get(b));
+        assertEquals(Long.valueOf(c), map.get(c));
+        assertEquals(Long.valueOf(d), map.get(d));
+
+        // Removing B must then move D back into slot 0
+        assertEquals(Long.valueOf(b), map.remove(b));
+        assertNull(map.get(b));
+        assertEquals(Long.valueOf(c), map.get(c));
+        assertEquals(Long.valueOf(d), map.get(d));
+        assertEquals(2, map.size());
+    }
+
+
+    /**
+     * Returns a map whose table has exactly CAPACITY slots.
+     */
+    private static LongKeyMap<Long> newMap() {
+        return new LongKeyMap<>(CAPACITY * 3 / 4);
+    }
+
+
+    /**
+     * Returns the first keys found whose home slot in a table of CAPACITY slots is the specified slot.
+     */
+    private static List<Long> keysWithHome(int slot, int count) {
+        List<Long> keys = new ArrayList<>();
+        for (long key = 1; keys.size() < count; key++) {
+            if ((LongKeyMap.hash(key) & (CAPACITY - 1)) == slot) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+}
@@ -0,0 +1,133 @@
+package org.map4j.loaders.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that OffHeapTileByteStore returns the images put into it, discards the
+ * least recently used images when full, and never allocates more than its budget.
+ *
+ * @author Joel Kozikowski
+ */
+public class OffHeapTileByteStoreTest {
+
+    private static final int BLOCK_SIZE = 1024;
+    private static final int SLAB_SIZE = 4 * BLOCK_SIZE;
+
+    private final Random random = new Random(7);
+
+
+    @Test
+    public void getReturnsWhatWasPut() {
+        OffHeapTileByteStore store = new OffHeapTileByteStore(64 * BLOCK_SIZE, BLOCK_SIZE, SLAB_SIZE);
+        byte[] small = randomBytes(100);
+        byte[] exact = randomBytes(BLOCK_SIZE);
+        byte[] large = randomBytes(5 * BLOCK_SIZE + 17);
+        byte[] empty = new byte[0];
+        store.put(1, small);
+        store.put(2, exact);
+        store.put(3, large);
+        store.put(4, empty);
+
+        assertArrayEquals(small, store.get(1));
+        assertArrayEquals(exact, store.get(2));
+        assertArrayEquals(large, store.get(3));
+        assertArrayEquals(empty, store.get(4));
+        assertNull(store.get(5));
+        assertEquals(4, store.getCount());
+        assertEquals(small.length + exact.length + large.length, store.getBytesHeld());
+    }
+
+
+    @Test
+    public void putReplacesAndRemoveForgets() {
+        OffHeapTileByteStore store = new OffHeapTileByteStore(16 * BLOCK_SIZE, BLOCK_SIZE, SLAB_SIZE);
+        byte[] first = randomBytes(3 * BLOCK_SIZE);
+        byte[] second = randomBytes(200);
+        store.put(1, first);
+        store.put(1, second);
+        assertArrayEquals(second, store.get(1));
+        assertEquals(1, store.getCount());
+        assertEquals(second.length, store.getBytesHeld());
+
+        store.remove(1);
+        assertNull(store.get(1));
+        assertEquals(0, store.getCount());
+        assertEquals(0, store.getBytesHeld());
+
+        // The freed blocks are re-used rather than allocating more memory...
+        long allocated = store.getBytesAllocated();
+        store.put(2, first);
+        assertArrayEquals(first, store.get(2));
+        assertEquals(allocated, store.getBytesAllocated());
+    }
+
+
+    @Test
+    public void discardsLeastRecentlyUsedWhenFull() {
+        OffHeapTileByteStore store = new OffHeapTileByteStore(4 * BLOCK_SIZE, BLOCK_SIZE, SLAB_SIZE);
+        byte[] one = randomBytes(2 * BLOCK_SIZE);
+        byte[] two = randomBytes(2 * BLOCK_SIZE);
+        byte[] three = randomBytes(BLOCK_SIZE);
+        store.put(1, one);
+        store.put(2, two);
+        // Using 1 makes 2 the least recently used...
+        store.get(1);
+        store.put(3, three);
+
+        assertArrayEquals(one, store.get(1));
+        assertNull(store.get(2));
+        assertArrayEquals(three, store.get(3));
+
+        // An image larger than the entire store is not kept
+        store.put(4, randomBytes(5 * BLOCK_SIZE));
+        assertNull(store.get(4));
+        assertArrayEquals(one, store.get(1));
+    }
+
+
+    @Test
+    public void budgetSmallerThanASlabIsHonored() {
+        OffHeapTileByteStore store = new OffHeapTileByteStore(2 * BLOCK_SIZE, BLOCK_SIZE, SLAB_SIZE);
+        store.put(1, randomBytes(BLOCK_SIZE));
+        store.put(2, randomBytes(BLOCK_SIZE));
+        store.put(3, randomBytes(BLOCK_SIZE));
+        assertEquals(2 * BLOCK_SIZE, store.getBytesAllocated());
+        assertEquals(2, store.getCount());
+    }
+
+
+    @Test
+    public void budgetIsNotRoundedDownToWholeSlabs() {
+        // Two and a half slabs, plus part of a block...
+        OffHeapTileByteStore store = new OffHeapTileByteStore(10 * BLOCK_SIZE + 100, BLOCK_SIZE, SLAB_SIZE);
+        for (int key = 0; key < 20; key++) {
+            store.put(key, randomBytes(BLOCK_SIZE));
+        }
+        assertEquals(10 * BLOCK_SIZE, store.getBytesAllocated());
+        assertEquals(10, store.getCount());
+        for (int key = 10; key < 20; key++) {
+            assertEquals(BLOCK_SIZE, store.get(key).length);
+        }
+
+        store.clear();
+        assertEquals(0, store.getCount());
+        byte[] all = randomBytes(10 * BLOCK_SIZE);
+        store.put(1, all);
+        assertArrayEquals(all, store.get(1));
+        assertEquals(10 * BLOCK_SIZE, store.getBytesAllocated());
+    }
+
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+}
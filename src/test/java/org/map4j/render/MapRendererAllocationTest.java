@@ -0,0 +1,156 @@
+package org.map4j.render;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.map4j.coordinates.WCoordinate;
+import org.map4j.loaders.ITileLoader;
+import org.map4j.loaders.ITileLoaderJob;
+import org.map4j.loaders.Tile;
+import org.map4j.loaders.TileLoaderController;
+import org.map4j.loaders.cache.MemoryTileCache;
+
+/**
+ * Verifies that recomposing the display image with display image pooling
+ * turned on allocates next to nothing once the front and back buffers exist.
+ * Allocations are measured with the per-thread allocation counter of the
+ * HotSpot ThreadMXBean.
+ *
+ * @author Joel Kozikowski
+ */
+public class MapRendererAllocationTest {
+
+    private static final int DISPLAY_WIDTH = 1920;
+    private static final int DISPLAY_HEIGHT = 1080;
+    private static final int FRAMES = 50;
+
+    /**
+     * The most a pooled frame may allocate on average. An unpooled frame
+     * allocates a new image of about 19 MB at this display size.
+     */
+    private static final long MAX_POOLED_BYTES_PER_FRAME = 16 * 1024;
+
+    private com.sun.management.ThreadMXBean threadBean;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+    }
+
+
+    @Test
+    public void pooledFramesAllocateNearlyNothing() {
+        MapRenderer renderer = newRenderer(true);
+
+        // The first two frames allocate the front and back buffers...
+        DisplayImage first = renderer.getDisplayImage();
+        renderer.refresh(false);
+        DisplayImage second = renderer.getDisplayImage();
+
+        long perFrame = bytesPerFrame(renderer);
+        assertTrue("Pooled frames allocated " + perFrame + " bytes each", perFrame < MAX_POOLED_BYTES_PER_FRAME);
+
+        // ...and after that, the two buffers simply take turns
+        renderer.refresh(false);
+        assertSame(first, renderer.getDisplayImage());
+        renderer.refresh(false);
+        assertSame(second, renderer.getDisplayImage());
+    }
+
+
+    @Test
+    public void unpooledFramesAllocateANewImage() {
+        MapRenderer renderer = newRenderer(false);
+        renderer.getDisplayImage();
+
+        long perFrame = bytesPerFrame(renderer);
+        long imageBytes = 4L * DISPLAY_WIDTH * DISPLAY_HEIGHT;
+        assertTrue("Unpooled frames allocated only " + perFrame + " bytes each", perFrame > imageBytes);
+    }
+
+
+    /**
+     * Returns the average number of bytes the current thread allocates to
+     * invalidate and recompose one display image.
+     */
+    private long bytesPerFrame(MapRenderer renderer) {
+        long threadId = Thread.currentThread().getId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < FRAMES; i++) {
+            renderer.refresh(false);
+            renderer.getDisplayImage();
+        }
+        long after = threadBean.getThreadAllocatedBytes(threadId);
+        return (after - before) / FRAMES;
+    }
+
+
+    private MapRenderer newRenderer(boolean pooling) {
+        TileLoaderController controller = new TileLoaderController(new IdleTileLoader(), new MemoryTileCache());
+        MapRenderer renderer = new MapRenderer(DISPLAY_WIDTH, DISPLAY_HEIGHT, 10, controller, new WCoordinate(26.1, -80.1));
+        renderer.setDisplayImagePooling(pooling);
+        return renderer;
+    }
+
+
+    /**
+     * A tile loader that never loads anything, so the grid shows its
+     * "loading" images and no tile events interrupt the measurement.
+     */
+    private static class IdleTileLoader implements ITileLoader {
+
+        @Override
+        public ITileLoaderJob createTileLoaderJob(Tile tile) {
+            return new ITileLoaderJob() {
+                @Override
+                public Tile getTile() {
+                    return tile;
+                }
+
+                @Override
+                public void startTileLoad() {
+                }
+
+                @Override
+                public void startTileLoad(boolean force) {
+                }
+
+                @Override
+                public void run() {
+                }
+            };
+        }
+
+        @Override
+        public void cancelOutstandingJobs() {
+        }
+
+        @Override
+        public boolean hasOutstandingJobs() {
+            return false;
+        }
+
+        @Override
+        public boolean jobQueueFull() {
+            return false;
+        }
+
+        @Override
+        public int getMaxLoadRetries() {
+            return 0;
+        }
+
+        @Override
+        public String getSourceId() {
+            return "idle";
+        }
+    }
+}